@@ -0,0 +1,97 @@
+package htmlpublisher;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Local copy of synthetic report trees, as done when the report is generated on the master.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CopyBenchmark {
+
+    /**
+     * Shape of the report: number of files x size of each file in bytes.
+     */
+    @Param({"10000x1024", "1000x65536", "4x67108864"})
+    public String shape;
+
+    private File reportDir;
+    private File targetDir;
+    private TaskListener listener;
+
+    @Setup(Level.Trial)
+    public void createReport() throws IOException {
+        String[] dimensions = shape.split("x");
+        int files = Integer.parseInt(dimensions[0]);
+        int size = Integer.parseInt(dimensions[1]);
+
+        reportDir = Util.createTempDir();
+        Random random = new Random(files);
+        byte[] content = new byte[size];
+        for (int i = 0; i < files; i++) {
+            // Spread the files over directories, like generated reports
+            File f = new File(reportDir, "dir" + (i % 100) + "/file" + i + ".html");
+            if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs()) {
+                throw new IOException("Cannot create " + f.getParentFile());
+            }
+            random.nextBytes(content);
+            OutputStream out = new FileOutputStream(f);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+        }
+        listener = new StreamTaskListener(new NullOutputStream());
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() throws IOException {
+        targetDir = Util.createTempDir();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws IOException {
+        Util.deleteRecursive(targetDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteReport() throws IOException {
+        Util.deleteRecursive(reportDir);
+    }
+
+    @Benchmark
+    public int copy() throws IOException, InterruptedException {
+        return new ReportTransfer(TransferCompression.DEFAULT, HtmlPublisher.DescriptorImpl.DEFAULT_COMPRESSION_LEVEL)
+                .copy(new FilePath(reportDir), ReportFileFilter.ALL.toScanner(), new FilePath(targetDir), listener);
+    }
+}
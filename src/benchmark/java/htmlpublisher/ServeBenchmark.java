@@ -0,0 +1,187 @@
+package htmlpublisher;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+
+import jenkins.util.VirtualFile;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serving of report files, as done by the report actions for each request.
+ * The servlet container is replaced by stubs, the response is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(4)
+@Fork(1)
+public class ServeBenchmark {
+
+    /**
+     * Size of the served file in bytes. Files up to 256 KB are served from the memory cache.
+     */
+    @Param({"4096", "262144", "4194304"})
+    public int size;
+
+    /**
+     * Value of the If-None-Match header, {@code none} to request the content.
+     */
+    @Param({"none", "match"})
+    public String revalidation;
+
+    private File reportDir;
+    private VirtualFile root;
+    private StaplerRequest request;
+    private StaplerResponse response;
+
+    @Setup
+    public void setUp() throws IOException {
+        reportDir = Util.createTempDir();
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) 'a');
+        OutputStream out = new FileOutputStream(new File(reportDir, "index.html"));
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        root = VirtualFile.forFile(reportDir);
+        response = stub(StaplerResponse.class, new ResponseHandler());
+
+        String etag = null;
+        if ("match".equals(revalidation)) {
+            ResponseHandler handler = new ResponseHandler();
+            ReportFileServer.serve(stub(StaplerRequest.class, new RequestHandler(null)),
+                    stub(StaplerResponse.class, handler), root, true);
+            etag = handler.etag;
+        }
+        request = stub(StaplerRequest.class, new RequestHandler(etag));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(reportDir);
+    }
+
+    @Benchmark
+    public boolean serve() throws IOException {
+        return ReportFileServer.serve(request, response, root, true);
+    }
+
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ServeBenchmark.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Answers a GET request of index.html, accepting GZip.
+     */
+    private static final class RequestHandler implements InvocationHandler {
+        private final String ifNoneMatch;
+        private final ServletContext context = stub(ServletContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "getMimeType".equals(method.getName()) ? "text/html" : defaultValue(method.getReturnType());
+            }
+        });
+        private final Stapler stapler = new Stapler() {
+            @Override
+            public ServletContext getServletContext() {
+                return context;
+            }
+        };
+
+        RequestHandler(String ifNoneMatch) {
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getMethod".equals(name)) {
+                return "GET";
+            }
+            if ("getRestOfPath".equals(name)) {
+                return "/index.html";
+            }
+            if ("getStapler".equals(name)) {
+                return stapler;
+            }
+            if ("getHeader".equals(name)) {
+                if ("If-None-Match".equals(args[0])) {
+                    return ifNoneMatch;
+                }
+                return "Accept-Encoding".equals(args[0]) ? "gzip, deflate" : null;
+            }
+            if ("getDateHeader".equals(name)) {
+                return -1L;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Records the entity tag, and discards the content.
+     */
+    private static final class ResponseHandler implements InvocationHandler {
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        private String etag;
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getOutputStream".equals(name)) {
+                return out;
+            }
+            if ("setHeader".equals(name) && "ETag".equals(args[0])) {
+                etag = (String) args[1];
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package htmlpublisher;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of the wrapper page: tabs of the index pages, and rendering of the template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WrapperBenchmark {
+
+    /**
+     * Number of index pages of the report.
+     */
+    @Param({"1", "10", "100"})
+    public int pages;
+
+    private String reportFiles;
+    private WrapperTemplate template;
+    private Map<String, String> values;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < pages; i++) {
+            b.append(i > 0 ? ", " : "").append("page").append(i).append(".html");
+        }
+        reportFiles = b.toString();
+        template = WrapperTemplate.getDefault();
+        values = new HashMap<String, String>();
+        values.put("tabs", HtmlPublisher.buildTabs(reportFiles));
+        values.put("scripts", "<script type=\"text/javascript\">document.getElementById(\"hudson_link\").innerHTML=\"Back to job\";</script>\n");
+        values.put("reportName", "Report");
+        values.put("jobName", "job");
+        values.put("jobUrl", "http://localhost:8080/job/job/");
+        values.put("zipUrl", "*zip*/Report.zip");
+    }
+
+    @Benchmark
+    public String buildTabs() {
+        return HtmlPublisher.buildTabs(reportFiles);
+    }
+
+    @Benchmark
+    public StringWriter render() throws IOException {
+        StringWriter w = new StringWriter();
+        template.render(values, w);
+        return w;
+    }
+}
@@ -28,25 +28,38 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
-import hudson.matrix.MatrixConfiguration;
-import hudson.matrix.MatrixProject;
 import hudson.model.*;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
@@ -57,6 +70,8 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
  * @author Mike Rooney
  */
 public class HtmlPublisher extends Recorder {
+    private static final long MEGABYTE = 1024 * 1024;
+
     private final ArrayList<HtmlPublisherTarget> reportTargets;
 
     @DataBoundConstructor
@@ -69,24 +84,19 @@ public class HtmlPublisher extends Recorder {
         return this.reportTargets;
     }
 
-    private static void writeFile(ArrayList<String> lines, File path) throws IOException {
-        //TODO: consider using UTF-8
-        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), Charset.defaultCharset()));
-        try {
-            for (int i = 0; i < lines.size(); i++) {
-                bw.write(lines.get(i));
-                bw.newLine();
-            }
-        } finally {
-            bw.close();
-        }     
-    }
-
+    /**
+     * @deprecated The wrapper page is not built from the lines of the header and footer anymore
+     */
+    @Deprecated
     public ArrayList<String> readFile(String filePath) throws java.io.FileNotFoundException,
             java.io.IOException {
         return readFile(filePath, this.getClass());
     }
     
+    /**
+     * @deprecated The wrapper page is not built from the lines of the header and footer anymore
+     */
+    @Deprecated
     public static ArrayList<String> readFile(String filePath, Class<?> publisherClass) 
             throws java.io.FileNotFoundException, java.io.IOException {
         ArrayList<String> aList = new ArrayList<String>();
@@ -155,6 +165,10 @@ public class HtmlPublisher extends Recorder {
         return input;
     }
 
+    private static String resolvePatterns(Run<?, ?> build, TaskListener listener, @CheckForNull String patterns) {
+        return patterns != null ? Util.fixEmptyAndTrim(resolveParametersInString(build, listener, patterns)) : null;
+    }
+
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) 
             throws InterruptedException {
@@ -163,6 +177,9 @@ public class HtmlPublisher extends Recorder {
     
     /**
      * Runs HTML the publishing operation for specified {@link HtmlPublisherTarget}s.
+     * If a report cannot be published, the build is marked as failed. Reports are published in order,
+     * and the remaining ones are skipped after a failure, unless they are published in parallel:
+     * all of them are published then, and the result of the build is set once they are done.
      * @return False if the operation failed 
      * @since TODO 
      */
@@ -170,81 +187,232 @@ public class HtmlPublisher extends Recorder {
             List<HtmlPublisherTarget> reportTargets, Class<?> publisherClass) throws InterruptedException {
         listener.getLogger().println("[htmlpublisher] Archiving HTML reports...");
         
-        // Grab the contents of the header and footer as arrays
-        ArrayList<String> headerLines;
-        ArrayList<String> footerLines;
+        // Get the templates of the wrapper pages, they are compiled once and cached
+        List<WrapperTemplate> templates = new ArrayList<WrapperTemplate>(reportTargets.size());
         try {
-            headerLines = readFile("/htmlpublisher/HtmlPublisher/header.html", publisherClass);
-            footerLines = readFile("/htmlpublisher/HtmlPublisher/footer.html", publisherClass);
-        } catch (FileNotFoundException e1) {
-            e1.printStackTrace();
-            return false;
-        } catch (IOException e1) {
-            e1.printStackTrace();
+            for (HtmlPublisherTarget reportTarget : reportTargets) {
+                templates.add(WrapperTemplate.forTarget(reportTarget));
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Cannot load the template of the wrapper page"));
             return false;
         }
         
+        int parallelism = getPublishParallelism();
+        if (parallelism > 1 && reportTargets.size() > 1) {
+            if (!publishReportsInParallel(build, workspace, listener, reportTargets, templates, parallelism)) {
+                build.setResult(Result.FAILURE);
+            }
+            return true;
+        }
+
         for (int i=0; i < reportTargets.size(); i++) {
-            // Create an array of lines we will eventually write out, initially the header.
-            ArrayList<String> reportLines = new ArrayList<String>(headerLines);
-            HtmlPublisherTarget reportTarget = reportTargets.get(i); 
-            boolean keepAll = reportTarget.getKeepAll();
-            boolean allowMissing = reportTarget.getAllowMissing();
-            
-            FilePath archiveDir = workspace.child(resolveParametersInString(build, listener, reportTarget.getReportDir()));
-            FilePath targetDir = reportTarget.getArchiveTarget(build);
-            
-            String levelString = keepAll ? "BUILD" : "PROJECT"; 
-            listener.getLogger().println("[htmlpublisher] Archiving at " + levelString + " level " + archiveDir + " to " + targetDir);
-
-            // The index name might be a comma separated list of names, so let's figure out all the pages we should index.
-            String[] csvReports = resolveParametersInString(build, listener, reportTarget.getReportFiles()).split(",");
-            ArrayList<String> reports = new ArrayList<String>();
-            for (int j=0; j < csvReports.length; j++) {
-                String report = csvReports[j];
-                report = report.trim();
-                
-                // Ignore blank report names caused by trailing or double commas.
-                if (report.equals("")) {continue;}
-                
-                reports.add(report);
-                String tabNo = "tab" + (j + 1);
-                // Make the report name the filename without the extension.
-                int end = report.lastIndexOf('.');
-                String reportName;
-                if (end > 0) {
-                    reportName = report.substring(0, end);
-                } else {
-                    reportName = report;
+            if (!publishReport(build, workspace, listener, reportTargets.get(i), templates.get(i))) {
+                build.setResult(Result.FAILURE);
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the global configuration of the publisher.
+     * @return {@code null} if Jenkins is not available
+     */
+    static DescriptorImpl getGlobalConfig() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null ? jenkins.getDescriptorByType(DescriptorImpl.class) : null;
+    }
+
+    private static int getPublishParallelism() {
+        DescriptorImpl descriptor = getGlobalConfig();
+        return descriptor != null ? descriptor.getPublishParallelism() : 1;
+    }
+
+    /**
+     * Publishes the reports concurrently.
+     * Each report is published on its own, a failure does not prevent other reports from being published.
+     * Logs of the reports are buffered and written in the order of the targets once each report is done.
+     * The result of the build is left to the caller, so that it is not updated by several threads.
+     * @return False if any of the reports could not be published
+     */
+    private static boolean publishReportsInParallel(final Run<?, ?> build, final FilePath workspace, TaskListener listener,
+            List<HtmlPublisherTarget> reportTargets, List<WrapperTemplate> templates, int parallelism)
+            throws InterruptedException {
+        listener.getLogger().println("[htmlpublisher] Publishing " + reportTargets.size() + " reports, up to "
+                + parallelism + " at a time");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, reportTargets.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "HtmlPublisher " + build.getFullDisplayName()));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(reportTargets.size());
+            List<ByteArrayOutputStream> logs = new ArrayList<ByteArrayOutputStream>(reportTargets.size());
+            for (int i = 0; i < reportTargets.size(); i++) {
+                final HtmlPublisherTarget reportTarget = reportTargets.get(i);
+                final WrapperTemplate template = templates.get(i);
+                final ByteArrayOutputStream log = new ByteArrayOutputStream();
+                logs.add(log);
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return publishReport(build, workspace, new StreamTaskListener(log), reportTarget, template);
+                    }
+                }));
+            }
+
+            boolean success = true;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        success = false;
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    cause.printStackTrace(new PrintStream(logs.get(i)));
+                    success = false;
+                } finally {
+                    byte[] bytes = logs.get(i).toByteArray();
+                    listener.getLogger().write(bytes, 0, bytes.length);
                 }
-                String tabItem = "<li id=\"" + tabNo + "\" class=\"unselected\" onclick=\"updateBody('" + tabNo + "');\" value=\"" + report + "\">" + reportName + "</li>";
-                reportLines.add(tabItem);
             }
-            // Add the JS to change the link as appropriate.
-            String hudsonUrl = Hudson.getInstance().getRootUrl();
-            Job job = build.getParent();
-            reportLines.add("<script type=\"text/javascript\">document.getElementById(\"hudson_link\").innerHTML=\"Back to " + job.getName() + "\";</script>");
-            // If the URL isn't configured in Hudson, the best we can do is attempt to go Back.
-            if (hudsonUrl == null) {
-                reportLines.add("<script type=\"text/javascript\">document.getElementById(\"hudson_link\").onclick = function() { history.go(-1); return false; };</script>");
-            } else {
-                String jobUrl = hudsonUrl + job.getUrl();
-                reportLines.add("<script type=\"text/javascript\">document.getElementById(\"hudson_link\").href=\"" + jobUrl + "\";</script>");
+            return success;
+        } finally {
+            // Interrupts the remaining publications if the build has been aborted
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks the limits of the files to publish.
+     * @param dir Directory of the files, on the node
+     * @param archiveDir Report directory, as configured
+     * @return False if the report is too large, and the publication should fail
+     */
+    private static boolean checkLimits(FilePath dir, ReportFileFilter filter, ReportLimitAction limitAction,
+            FilePath archiveDir, TaskListener listener) throws IOException, InterruptedException {
+        String exceeded = dir.act(new ReportFileFilter.Check(filter));
+        if (exceeded != null) {
+            if (limitAction == ReportLimitAction.FAIL) {
+                listener.error("HTML directory '" + archiveDir + "' is too large to be published: " + exceeded + ".");
+                return false;
             }
-    
-            reportLines.add("<script type=\"text/javascript\">document.getElementById(\"zip_link\").href=\"*zip*/" + reportTarget.getSanitizedName() + ".zip\";</script>");
+            listener.getLogger().println("[htmlpublisher] WARNING: HTML directory '" + archiveDir + "' is too large: "
+                    + exceeded + ", only the first files within the limits are archived");
+        }
+        return true;
+    }
 
+    /**
+     * Publishes a single report.
+     * Project-level reports are copied into a staging directory first, which replaces the published report
+     * once it is complete, so that the report is never served partially copied.
+     * The result of the build is not updated, as reports might be published concurrently.
+     * @return False if the publication failed, and the build should be marked as failed
+     */
+    private static boolean publishReport(Run<?, ?> build, FilePath workspace, TaskListener listener,
+            HtmlPublisherTarget reportTarget, WrapperTemplate template)
+            throws InterruptedException {
+        ReportPublishStats.TargetStats stats = new ReportPublishStats.TargetStats(reportTarget.getReportName(), getNodeName(workspace));
+        boolean keepAll = reportTarget.getKeepAll();
+        boolean allowMissing = reportTarget.getAllowMissing();
+        ReportStorage storage = reportTarget.getStorage();
+
+        FilePath archiveDir = workspace.child(resolveParametersInString(build, listener, reportTarget.getReportDir()));
+        DescriptorImpl globalConfig = getGlobalConfig();
+        ReportFileFilter filter = new ReportFileFilter(
+                resolvePatterns(build, listener, reportTarget.getIncludes()),
+                resolvePatterns(build, listener, reportTarget.getExcludes()))
+                .withLimits(MEGABYTE * getLimit(reportTarget.getMaxSizeMB(), globalConfig != null ? globalConfig.getMaxSizeMB() : 0),
+                        getLimit(reportTarget.getMaxFiles(), globalConfig != null ? globalConfig.getMaxFiles() : 0));
+        ReportLimitAction limitAction = globalConfig != null ? globalConfig.getLimitAction() : ReportLimitAction.FAIL;
+        ReportVersions versions = keepAll ? null : reportTarget.getProjectReportVersions(build.getParent());
+        File staging = versions != null ? versions.createStaging(build) : null;
+        FilePath targetDir = staging != null ? new FilePath(staging) : reportTarget.getArchiveTarget(build);
+
+        String levelString = keepAll ? "BUILD" : "PROJECT"; 
+        listener.getLogger().println("[htmlpublisher] Archiving at " + levelString + " level " + archiveDir + " to " + targetDir);
+        if (filter.isFiltering()) {
+            listener.getLogger().println("[htmlpublisher] Archiving only " + filter);
+        }
+        if (filter.isLimited()) {
+            listener.getLogger().println("[htmlpublisher] Archiving up to " + filter.describeLimits());
+        }
+        if (!keepAll && storage != ReportStorage.DIRECTORY) {
+            listener.getLogger().println("[htmlpublisher] " + storage.getDisplayName()
+                    + " storage applies only to reports kept for each build, the report will be stored as a plain directory");
+            storage = ReportStorage.DIRECTORY;
+        }
+
+        String tabs = buildTabs(resolveParametersInString(build, listener, reportTarget.getReportFiles()));
+        // Add the JS to change the link as appropriate.
+        StringBuilder scripts = new StringBuilder();
+        String hudsonUrl = Hudson.getInstance().getRootUrl();
+        Job job = build.getParent();
+        String jobUrl = hudsonUrl != null ? hudsonUrl + job.getUrl() : null;
+        String zipUrl = "*zip*/" + reportTarget.getSanitizedName() + ".zip";
+        scripts.append("<script type=\"text/javascript\">document.getElementById(\"hudson_link\").innerHTML=\"Back to ").append(job.getName()).append("\";</script>\n");
+        // If the URL isn't configured in Hudson, the best we can do is attempt to go Back.
+        if (jobUrl == null) {
+            scripts.append("<script type=\"text/javascript\">document.getElementById(\"hudson_link\").onclick = function() { history.go(-1); return false; };</script>\n");
+        } else {
+            scripts.append("<script type=\"text/javascript\">document.getElementById(\"hudson_link\").href=\"").append(jobUrl).append("\";</script>\n");
+        }
+        scripts.append("<script type=\"text/javascript\">document.getElementById(\"zip_link\").href=\"").append(zipUrl).append("\";</script>");
+
+        Map<String, String> wrapperValues = new HashMap<String, String>();
+        wrapperValues.put("tabs", tabs);
+        wrapperValues.put("scripts", scripts.toString());
+        wrapperValues.put("reportName", reportTarget.getReportName());
+        wrapperValues.put("jobName", job.getName());
+        wrapperValues.put("jobUrl", jobUrl != null ? jobUrl : "#");
+        wrapperValues.put("zipUrl", zipUrl);
+        stats.endPhase(ReportPublishStats.RESOLVE);
+
+        FilePath minifiedDir = null;
+        try {
             try {
                 if (!archiveDir.exists() && !allowMissing) {
                     listener.error("Specified HTML directory '" + archiveDir + "' does not exist.");
-                    build.setResult(Result.FAILURE);
-                    return true;
-                } else if (!keepAll) {
-                    // We are only keeping one copy at the project level, so remove the old one.
-                    targetDir.deleteRecursive();
+                    return false;
                 }
-    
-                if (archiveDir.copyRecursiveTo("**/*", targetDir) == 0 && !allowMissing) {
+
+                // Checked on the node, so that the master does not receive anything from an oversized report
+                if (!checkLimits(archiveDir, filter, limitAction, archiveDir, listener)) {
+                    return false;
+                }
+
+                // The minified report is written on the node, and published instead of the report directory
+                FilePath sourceDir = archiveDir;
+                ReportFileFilter sourceFilter = filter;
+                if (reportTarget.getMinify() && archiveDir.exists()) {
+                    minifiedDir = createTempDir(workspace);
+                    ReportMinification.Result minification = archiveDir.act(
+                            new ReportMinification.Minify(filter, minifiedDir.getRemote(), reportTarget.getKeepOriginals()));
+                    listener.getLogger().println("[htmlpublisher] " + minification);
+                    stats.setSavedBytes(minification.getSavedBytes());
+                    stats.endPhase(ReportPublishStats.MINIFY);
+                    sourceDir = minifiedDir;
+                    // The original files might be kept next to the minified ones, the published tree is limited too
+                    sourceFilter = filter.limitsOnly();
+                    if (!checkLimits(minifiedDir, sourceFilter, limitAction, archiveDir, listener)) {
+                        return false;
+                    }
+                }
+
+                final int copied;
+                if (!keepAll && reportTarget.getIncrementalSync()) {
+                    copied = ReportSync.sync(sourceDir, sourceFilter, staging, versions.getCurrentDir(), listener);
+                } else if (storage == ReportStorage.DEDUPLICATED) {
+                    copied = ReportBlobStore.forJob(build.getParent()).archive(sourceDir, sourceFilter, new File(targetDir.getRemote()), listener);
+                } else if (storage == ReportStorage.DELTA) {
+                    copied = ReportDeltaStore.forJob(build.getParent()).archive(build, sourceDir, sourceFilter,
+                            new File(targetDir.getRemote()), reportTarget.getFullCopyInterval(), listener);
+                } else if (storage == ReportStorage.ARCHIVE) {
+                    copied = ReportArchive.archive(sourceDir, sourceFilter, new File(targetDir.getRemote()), listener);
+                } else {
+                    copied = copyWithManifest(sourceDir, sourceFilter, new File(targetDir.getRemote()), listener);
+                }
+                stats.endPhase(ReportPublishStats.TRANSFER);
+                if (copied == 0 && !allowMissing) {
                     listener.error("Directory '" + archiveDir + "' exists but failed copying to '" + targetDir + "'.");
                     final Result buildResult = build.getResult();
                     if (buildResult != null && buildResult.isBetterOrEqualTo(Result.UNSTABLE)) {
@@ -252,31 +420,160 @@ public class HtmlPublisher extends Recorder {
                         // The build probably didn't even get to the point where it produces coverage.
                         listener.error("This is especially strange since your build otherwise succeeded.");
                     }
-                    build.setResult(Result.FAILURE);
-                    return true;
+                    return false;
+                }
+                if (reportTarget.getPrecompress()) {
+                    if (storage == ReportStorage.DIRECTORY) {
+                        ReportPrecompression.compress(new File(targetDir.getRemote()), listener);
+                        stats.endPhase(ReportPublishStats.PRECOMPRESS);
+                    } else {
+                        listener.getLogger().println("[htmlpublisher] Precompression applies only to reports stored as a plain directory");
+                    }
                 }
             } catch (IOException e) {
                 Util.displayIOException(e, listener);
                 e.printStackTrace(listener.fatalError("HTML Publisher failure"));
-                build.setResult(Result.FAILURE);
-                return true;
+                return false;
             }
 
-            // Now add the footer.
-            reportLines.addAll(footerLines);
-            // And write this as the index
+            // Write the wrapper page as the index
             try {
                 if(archiveDir.exists())
                 {
                     reportTarget.handleAction(build);
-                    writeFile(reportLines, new File(targetDir.getRemote(), reportTarget.getWrapperName()));
+                    stats.endPhase(ReportPublishStats.ATTACH);
+                    template.render(wrapperValues, new File(targetDir.getRemote(), reportTarget.getWrapperName()));
+                    if (storage == ReportStorage.DIRECTORY || storage == ReportStorage.DELTA) {
+                        // The report is browsed from its manifest, which has to list the wrapper too
+                        File manifestFile = ReportManifest.getFile(new File(targetDir.getRemote()));
+                        if (manifestFile.isFile()) {
+                            ReportManifest manifest = ReportManifest.read(manifestFile);
+                            manifest.putFile(new File(targetDir.getRemote()), reportTarget.getWrapperName());
+                            manifest.save(manifestFile);
+                        }
+                    }
+                    stats.endPhase(ReportPublishStats.WRAPPER);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
+
+            // Measured before the staging directory is committed
+            ReportUsage.Report usage = ReportUsage.measure(new File(targetDir.getRemote()));
+            stats.setVolume(usage.getFiles(), usage.getSize());
+            if (versions != null) {
+                // Replace the project-level report at once, an empty staging directory removes it
+                try {
+                    if (!versions.commit(staging)) {
+                        listener.getLogger().println("[htmlpublisher] A more recent build has already published the report, keeping it");
+                        usage = null;
+                    }
+                } catch (IOException e) {
+                    Util.displayIOException(e, listener);
+                    e.printStackTrace(listener.fatalError("HTML Publisher failure"));
+                    return false;
+                }
+            }
+            if (usage != null) {
+                ReportUsage.forJob(job).record(reportTarget.getSanitizedName(), keepAll ? build : null, usage);
+            }
+            stats.endPhase(ReportPublishStats.COMMIT);
+            ReportPublishStats.forBuild(build).add(stats);
+            listener.getLogger().println("[htmlpublisher] Published " + stats);
+            return true;
+        } finally {
+            if (staging != null) {
+                // Nothing is left once the staging directory has been committed
+                versions.discard(staging);
+            } else {
+                ReportMetadataCache.invalidate(new File(targetDir.getRemote()));
+            }
+            if (minifiedDir != null) {
+                try {
+                    minifiedDir.deleteRecursive();
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Cannot delete the minified report " + minifiedDir));
+                }
+            }
         }
+    }
 
-        return true;
+    /**
+     * Builds the tabs of the wrapper page, one for each index page.
+     * @param reportFiles Comma separated list of the index pages
+     */
+    static String buildTabs(String reportFiles) {
+        // The index name might be a comma separated list of names, so let's figure out all the pages we should index.
+        String[] csvReports = reportFiles.split(",");
+        StringBuilder tabs = new StringBuilder();
+        for (int j=0; j < csvReports.length; j++) {
+            String report = csvReports[j];
+            report = report.trim();
+            
+            // Ignore blank report names caused by trailing or double commas.
+            if (report.equals("")) {continue;}
+            
+            String tabNo = "tab" + (j + 1);
+            // Make the report name the filename without the extension.
+            int end = report.lastIndexOf('.');
+            String reportName;
+            if (end > 0) {
+                reportName = report.substring(0, end);
+            } else {
+                reportName = report;
+            }
+            tabs.append("<li id=\"").append(tabNo).append("\" class=\"unselected\" onclick=\"updateBody('").append(tabNo)
+                    .append("');\" value=\"").append(report).append("\">").append(reportName).append("</li>\n");
+        }
+        return tabs.toString();
+    }
+
+    /**
+     * Gets the lowest of the limits of the report and the global one.
+     * @return 0 if there is no limit
+     */
+    private static int getLimit(int reportLimit, int globalLimit) {
+        if (reportLimit == 0 || globalLimit == 0) {
+            return Math.max(reportLimit, globalLimit);
+        }
+        return Math.min(reportLimit, globalLimit);
+    }
+
+    private static String getNodeName(FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        if (computer == null) {
+            return "unknown node";
+        }
+        return computer.getName().length() > 0 ? computer.getName() : "master";
+    }
+
+    /**
+     * Creates a temporary directory on the node of the workspace, next to it like other temporary files of builds.
+     */
+    private static FilePath createTempDir(FilePath workspace) throws IOException, InterruptedException {
+        FilePath parent = workspace.getParent();
+        FilePath tmp = parent != null ? parent.child(workspace.getName() + "@tmp") : workspace;
+        tmp.mkdirs();
+        return tmp.createTempDir("htmlpublisher", "minified");
+    }
+
+    /**
+     * Copies the report as a plain directory, and saves its manifest next to it.
+     * The files are read once on the node, the manifest is computed from the copied files on the master,
+     * so that it lists exactly their sizes and digests, even if the report changed during the copy.
+     * @return Number of copied files
+     */
+    private static int copyWithManifest(FilePath reportDir, ReportFileFilter filter, File targetDir, TaskListener listener)
+            throws IOException, InterruptedException {
+        if (!reportDir.exists()) {
+            return 0;
+        }
+        int copied = ReportTransfer.get().copy(reportDir, filter.toScanner(), new FilePath(targetDir), listener);
+        if (copied == 0) {
+            return 0;
+        }
+        ReportManifest.compute(targetDir, ReportStorage.DIRECTORY, null, filter).save(ReportManifest.getFile(targetDir));
+        return copied;
     }
 
     @Override
@@ -285,18 +582,9 @@ public class HtmlPublisher extends Recorder {
             return Collections.emptyList();
         } else {
             ArrayList<Action> actions = new ArrayList<Action>();
+            // Actions of matrix configurations are refreshed by MatrixReportActionsRefresher
             for (HtmlPublisherTarget target : this.reportTargets) {
                 actions.add(target.getProjectAction(project));
-                if (project instanceof MatrixProject && ((MatrixProject) project).getActiveConfigurations() != null){
-                    for (MatrixConfiguration mc : ((MatrixProject) project).getActiveConfigurations()){
-                        try {
-                          mc.onLoad(mc.getParent(), mc.getName());
-                        }
-                        catch (IOException e){
-                            //Could not reload the configuration.
-                        }
-                    }
-                }
             }
             return actions;
         }
@@ -304,6 +592,234 @@ public class HtmlPublisher extends Recorder {
 
     @Extension
     public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+        /**
+         * Maximum number of reports published at the same time by a build.
+         */
+        private int publishParallelism = 1;
+
+        static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+        /**
+         * Compression of the report files transferred from the nodes. {@code null} means {@link TransferCompression#DEFAULT}.
+         */
+        private TransferCompression transferCompression;
+
+        /**
+         * Level used to compress the report files on the nodes, from 0 to 9.
+         */
+        private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+        /**
+         * Template of the wrapper pages. {@code null} means the template bundled with the plugin.
+         */
+        private String wrapperTemplate;
+
+        static final int DEFAULT_FILE_CACHE_SIZE = 32;
+
+        /**
+         * Size in megabytes of the memory cache of small report files, 0 disables it.
+         */
+        private int fileCacheSize = DEFAULT_FILE_CACHE_SIZE;
+
+        /**
+         * Maximum size in megabytes of the files published by a report, 0 means no limit.
+         */
+        private int maxSizeMB;
+
+        /**
+         * Maximum number of files published by a report, 0 means no limit.
+         */
+        private int maxFiles;
+
+        /**
+         * What happens when a report exceeds a limit. {@code null} means {@link ReportLimitAction#FAIL}.
+         */
+        private ReportLimitAction limitAction;
+
+        public DescriptorImpl() {
+            load();
+            applyFileCacheSize();
+        }
+
+        /**
+         * Gets the maximum number of reports published at the same time by a build.
+         * @since TODO
+         */
+        public int getPublishParallelism() {
+            return Math.max(1, publishParallelism);
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setPublishParallelism(int publishParallelism) {
+            this.publishParallelism = publishParallelism;
+        }
+
+        /**
+         * Gets the compression of the report files transferred from the nodes.
+         * @since TODO
+         */
+        public @Nonnull TransferCompression getTransferCompression() {
+            return transferCompression != null ? transferCompression : TransferCompression.DEFAULT;
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setTransferCompression(TransferCompression transferCompression) {
+            this.transferCompression = transferCompression == TransferCompression.DEFAULT ? null : transferCompression;
+        }
+
+        /**
+         * Gets the level used to compress the report files on the nodes.
+         * It applies to GZip transfers and to reports stored as a single archive.
+         * @since TODO
+         */
+        public int getCompressionLevel() {
+            return Math.min(9, Math.max(0, compressionLevel));
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+        }
+
+        /**
+         * Gets the template of the wrapper pages used by the reports, which do not define their own one.
+         * @return {@code null} if the template bundled with the plugin is used
+         * @since TODO
+         */
+        public @CheckForNull String getWrapperTemplate() {
+            return wrapperTemplate;
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setWrapperTemplate(String wrapperTemplate) {
+            this.wrapperTemplate = WrapperTemplate.normalize(wrapperTemplate);
+        }
+
+        /**
+         * Gets the size in megabytes of the memory cache of small report files.
+         * @since TODO
+         */
+        public int getFileCacheSize() {
+            return Math.max(0, fileCacheSize);
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setFileCacheSize(int fileCacheSize) {
+            this.fileCacheSize = fileCacheSize;
+            applyFileCacheSize();
+        }
+
+        /**
+         * Resizes the memory cache of small report files, files exceeding the new size are released at once.
+         */
+        private void applyFileCacheSize() {
+            ReportFileCache.get().setMaxSize(getFileCacheSize() * MEGABYTE);
+        }
+
+        /**
+         * Gets the maximum size in megabytes of the files published by a report.
+         * Reports may define a lower limit.
+         * @return 0 if there is no limit
+         * @since TODO
+         */
+        public int getMaxSizeMB() {
+            return Math.max(0, maxSizeMB);
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setMaxSizeMB(int maxSizeMB) {
+            this.maxSizeMB = maxSizeMB;
+        }
+
+        /**
+         * Gets the maximum number of files published by a report.
+         * Reports may define a lower limit.
+         * @return 0 if there is no limit
+         * @since TODO
+         */
+        public int getMaxFiles() {
+            return Math.max(0, maxFiles);
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setMaxFiles(int maxFiles) {
+            this.maxFiles = maxFiles;
+        }
+
+        /**
+         * Gets what happens when a report exceeds its maximum size or number of files.
+         * @since TODO
+         */
+        public @Nonnull ReportLimitAction getLimitAction() {
+            return limitAction != null ? limitAction : ReportLimitAction.FAIL;
+        }
+
+        /**
+         * @since TODO
+         */
+        public void setLimitAction(ReportLimitAction limitAction) {
+            this.limitAction = limitAction == ReportLimitAction.FAIL ? null : limitAction;
+        }
+
+        /**
+         * Gets the memory cache of small report files, to display its statistics.
+         */
+        @Restricted(NoExternalUse.class)
+        public ReportFileCache getFileCache() {
+            return ReportFileCache.get();
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            req.bindJSON(this, json);
+            // The field might have been bound without its setter
+            applyFileCacheSize();
+            save();
+            return true;
+        }
+
+        public FormValidation doCheckPublishParallelism(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckFileCacheSize(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxSizeMB(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxFiles(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckCompressionLevel(@QueryParameter String value) {
+            try {
+                int level = Integer.parseInt(Util.fixNull(value).trim());
+                if (level >= 0 && level <= 9) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            return FormValidation.error("The compression level must be between 0 and 9");
+        }
+
         @Override
         public String getDisplayName() {
             // return Messages.JavadocArchiver_DisplayName();
@@ -10,21 +10,28 @@ import hudson.model.ProminentProjectAction;
 import hudson.model.Run;
 import hudson.model.Descriptor;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.InvisibleAction;
 import hudson.model.Job;
 
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import javax.servlet.ServletException;
 import jenkins.model.RunAction2;
+import jenkins.util.VirtualFile;
 
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * A representation of an HTML directory to archive and publish.
@@ -32,7 +39,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
  * @author Mike Rooney
  *
  */
-public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTarget> {
+public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTarget> implements Serializable {
     /**
      * The name of the report to display for the build/project, such as "Code Coverage"
      */
@@ -63,6 +70,76 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
      */
     private final boolean allowMissing;
 
+    /**
+     * How the reports kept for each build are stored. {@code null} means {@link ReportStorage#DIRECTORY}.
+     */
+    private ReportStorage storage;
+
+    /**
+     * Number of builds after which a report stored as changes is copied in full again. 0 means the default.
+     */
+    private int fullCopyInterval;
+
+    /**
+     * If true, project-level reports are updated by transferring only the files, which have changed.
+     */
+    private boolean incrementalSync;
+
+    /**
+     * If true, compressed variants of the text files are written when the report is published.
+     */
+    private boolean precompress;
+
+    /**
+     * If true, JavaScript, CSS, HTML and JSON files are minified on the node, and source maps are left out.
+     */
+    private boolean minify;
+
+    /**
+     * If true, the original files of a minified report are published too.
+     */
+    private boolean keepOriginals;
+
+    /**
+     * Comma separated Ant-style patterns of the archived files. {@code null} means all files.
+     */
+    private String includes;
+
+    /**
+     * Comma separated Ant-style patterns of the files, which are not archived. {@code null} means none.
+     */
+    private String excludes;
+
+    /**
+     * Number of builds, whose reports are kept. 0 means no limit.
+     */
+    private int retentionBuilds;
+
+    /**
+     * Number of days, during which reports are kept. 0 means no limit.
+     */
+    private int retentionDays;
+
+    /**
+     * Total size in megabytes of the reports kept for the job. 0 means no limit.
+     */
+    private int retentionSizeMB;
+
+    /**
+     * Maximum size in megabytes of the published files. 0 means the global limit.
+     */
+    private int maxSizeMB;
+
+    /**
+     * Maximum number of published files. 0 means the global limit.
+     */
+    private int maxFiles;
+
+    /**
+     * Template of the wrapper page. {@code null} means the global template.
+     */
+    private String wrapperTemplate;
+
     /**
      * Do not use, but keep to maintain compatibility with older releases. See JENKINS-31366.
      */
@@ -74,6 +151,8 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
      */
     private static final String WRAPPER_NAME = "htmlpublisher-wrapper.html";
 
+    static final int DEFAULT_FULL_COPY_INTERVAL = 10;
+
     /**
      * @deprecated Use {@link #HtmlPublisherTarget(java.lang.String, java.lang.String, java.lang.String, boolean, boolean, boolean)}. 
      */
@@ -127,6 +206,280 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
            return this.allowMissing;
     }
 
+    /**
+     * Gets the storage of the reports kept for each build.
+     * @since TODO
+     */
+    public @Nonnull ReportStorage getStorage() {
+        return this.storage != null ? this.storage : ReportStorage.DIRECTORY;
+    }
+
+    /**
+     * Sets the storage of the reports kept for each build.
+     * It has no effect on reports published on the project level.
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setStorage(ReportStorage storage) {
+        this.storage = storage == ReportStorage.DIRECTORY ? null : storage;
+    }
+
+    /**
+     * Gets the number of builds after which a report stored as changes is copied in full again.
+     * @since TODO
+     */
+    public int getFullCopyInterval() {
+        return this.fullCopyInterval > 0 ? this.fullCopyInterval : DEFAULT_FULL_COPY_INTERVAL;
+    }
+
+    /**
+     * Sets the number of builds after which the report is copied in full again, when it is stored
+     * as {@link ReportStorage#DELTA changes}. The builds in between only store the changed files.
+     * @param fullCopyInterval Number of builds, 0 means the default
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setFullCopyInterval(int fullCopyInterval) {
+        this.fullCopyInterval = fullCopyInterval == DEFAULT_FULL_COPY_INTERVAL ? 0 : Math.max(0, fullCopyInterval);
+    }
+
+    /**
+     * Checks if the project-level report is updated incrementally.
+     * @since TODO
+     */
+    public boolean getIncrementalSync() {
+        return this.incrementalSync;
+    }
+
+    /**
+     * If set, the project-level report is updated by transferring only the files, which have changed
+     * since the previous publication, and by removing the files, which are not part of the report anymore.
+     * It has no effect on reports kept for each build.
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setIncrementalSync(boolean incrementalSync) {
+        this.incrementalSync = incrementalSync;
+    }
+
+    /**
+     * Checks if compressed variants of the text files are written when the report is published.
+     * @since TODO
+     */
+    public boolean getPrecompress() {
+        return this.precompress;
+    }
+
+    /**
+     * If set, GZip variants of the text files of the report are written when it is published,
+     * and sent to the browsers accepting them. It applies to reports stored as a plain directory.
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setPrecompress(boolean precompress) {
+        this.precompress = precompress;
+    }
+
+    /**
+     * Checks if the text files of the report are minified before they are transferred.
+     * @since TODO
+     */
+    public boolean getMinify() {
+        return this.minify;
+    }
+
+    /**
+     * If set, JavaScript, CSS, HTML and JSON files are minified on the node before they are transferred,
+     * and source maps are left out. Only whitespace and comments are removed.
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setMinify(boolean minify) {
+        this.minify = minify;
+    }
+
+    /**
+     * Checks if the original files of a minified report are published too.
+     * @since TODO
+     */
+    public boolean getKeepOriginals() {
+        return this.keepOriginals;
+    }
+
+    /**
+     * If set, the original files of a minified report, including source maps, are published too,
+     * in the {@code htmlpublisher-originals} directory of the report.
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setKeepOriginals(boolean keepOriginals) {
+        this.keepOriginals = keepOriginals;
+    }
+
+    /**
+     * Gets the patterns of the files of the report directory, which are archived.
+     * @return {@code null} if all files are archived
+     * @since TODO
+     */
+    public @CheckForNull String getIncludes() {
+        return this.includes;
+    }
+
+    /**
+     * Archives only the files matching the given comma separated Ant-style patterns, like {@code **}{@code /*.html, css/**}.
+     * Patterns are evaluated on the node, files left out are not transferred.
+     * @param includes Patterns, a blank value means all files
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setIncludes(String includes) {
+        this.includes = Util.fixEmptyAndTrim(includes);
+    }
+
+    /**
+     * Gets the patterns of the files of the report directory, which are not archived.
+     * @return {@code null} if no file is excluded
+     * @since TODO
+     */
+    public @CheckForNull String getExcludes() {
+        return this.excludes;
+    }
+
+    /**
+     * Leaves out the files matching the given comma separated Ant-style patterns, like {@code **}{@code /*.map}.
+     * @param excludes Patterns, a blank value means no file is excluded
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setExcludes(String excludes) {
+        this.excludes = Util.fixEmptyAndTrim(excludes);
+    }
+
+    /**
+     * Gets the number of builds, whose reports are kept.
+     * @return 0 if there is no limit
+     * @since TODO
+     */
+    public int getRetentionBuilds() {
+        return this.retentionBuilds;
+    }
+
+    /**
+     * Keeps the reports of the given number of most recent builds, the reports of older builds are removed
+     * in the background. It applies to reports kept for each build.
+     * @param retentionBuilds Number of builds, 0 means no limit
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setRetentionBuilds(int retentionBuilds) {
+        this.retentionBuilds = Math.max(0, retentionBuilds);
+    }
+
+    /**
+     * Gets the number of days, during which reports are kept.
+     * @return 0 if there is no limit
+     * @since TODO
+     */
+    public int getRetentionDays() {
+        return this.retentionDays;
+    }
+
+    /**
+     * Keeps the reports of the builds younger than the given number of days.
+     * It applies to reports kept for each build.
+     * @param retentionDays Number of days, 0 means no limit
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = Math.max(0, retentionDays);
+    }
+
+    /**
+     * Gets the total size in megabytes of the reports kept for the job.
+     * @return 0 if there is no limit
+     * @since TODO
+     */
+    public int getRetentionSizeMB() {
+        return this.retentionSizeMB;
+    }
+
+    /**
+     * Keeps the most recent reports, as long as their total size does not exceed the given size.
+     * It applies to reports kept for each build.
+     * @param retentionSizeMB Size in megabytes, 0 means no limit
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setRetentionSizeMB(int retentionSizeMB) {
+        this.retentionSizeMB = Math.max(0, retentionSizeMB);
+    }
+
+    /**
+     * Gets the maximum size in megabytes of the published files.
+     * @return 0 if only the global limit applies
+     * @since TODO
+     */
+    public int getMaxSizeMB() {
+        return this.maxSizeMB;
+    }
+
+    /**
+     * Limits the total size of the published files, which is checked on the node before they are transferred.
+     * The global limit applies too, the lowest one is used.
+     * @param maxSizeMB Size in megabytes, 0 means only the global limit applies
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setMaxSizeMB(int maxSizeMB) {
+        this.maxSizeMB = Math.max(0, maxSizeMB);
+    }
+
+    /**
+     * Gets the maximum number of published files.
+     * @return 0 if only the global limit applies
+     * @since TODO
+     */
+    public int getMaxFiles() {
+        return this.maxFiles;
+    }
+
+    /**
+     * Limits the number of published files, which is checked on the node before they are transferred.
+     * The global limit applies too, the lowest one is used.
+     * @param maxFiles Number of files, 0 means only the global limit applies
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = Math.max(0, maxFiles);
+    }
+
+    /**
+     * Checks if old reports kept for each build are removed.
+     */
+    boolean hasRetentionPolicy() {
+        return this.retentionBuilds > 0 || this.retentionDays > 0 || this.retentionSizeMB > 0;
+    }
+
+    /**
+     * Gets the template of the wrapper page of the report.
+     * @return {@code null} if the global template is used
+     * @since TODO
+     */
+    public @CheckForNull String getWrapperTemplate() {
+        return this.wrapperTemplate;
+    }
+
+    /**
+     * Sets the template of the wrapper page of the report. A blank template means the global template.
+     * @since TODO
+     */
+    @DataBoundSetter
+    public void setWrapperTemplate(String wrapperTemplate) {
+        this.wrapperTemplate = WrapperTemplate.normalize(wrapperTemplate);
+    }
+
     public String getSanitizedName() {
         String safeName = this.reportName;
         safeName = safeName.replace(" ", "_");
@@ -138,7 +491,7 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
     }
     
     public FilePath getArchiveTarget(Run build) {
-        return new FilePath(this.keepAll ? getBuildArchiveDir(build) : getProjectArchiveDir(build.getParent()));
+        return new FilePath(this.keepAll ? getBuildArchiveDir(build) : getProjectReportVersions(build.getParent()).getCurrentDir());
     }
 
     /**
@@ -147,13 +500,77 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
     private File getProjectArchiveDir(AbstractItem project) {
         return new File(new File(project.getRootDir(), "htmlreports"), this.getSanitizedName());
     }
+    /**
+     * Gets the published versions of the project-level report.
+     */
+    ReportVersions getProjectReportVersions(AbstractItem project) {
+        return new ReportVersions(getProjectArchiveDir(project));
+    }
+
     /**
      * Gets the directory where the HTML report is stored for the given build.
      */
-    private File getBuildArchiveDir(Run run) {
+    File getBuildArchiveDir(Run run) {
         return new File(new File(run.getRootDir(), "htmlreports"), this.getSanitizedName());
     }
 
+    /**
+     * Opens the report archived for the given build, whatever storage it has been published with.
+     */
+    private VirtualFile getBuildArchiveRoot(Run<?, ?> run) throws IOException {
+        return getArchiveRoot(getBuildArchiveDir(run), run.getParent());
+    }
+
+    /**
+     * Opens the current version of the report published for the given project.
+     */
+    private VirtualFile getProjectArchiveRoot(AbstractItem project) throws IOException {
+        return getArchiveRoot(getProjectReportVersions(project).getCurrentDir(), null);
+    }
+
+    /**
+     * Opens a report, from its manifest if it has one, so that it is browsed without walking the file system.
+     * @param job Job of the report, {@code null} for project-level reports, which are neither deduplicated nor stored as changes
+     */
+    private static VirtualFile getArchiveRoot(final File dir, @CheckForNull Job<?, ?> job) throws IOException {
+        File manifestFile = ReportManifest.getFile(dir);
+        if (manifestFile.isFile()) {
+            ReportManifest manifest = ReportManifest.load(manifestFile);
+            ManifestVirtualFile.ContentLocator content;
+            switch (manifest.getStorage()) {
+                case DEDUPLICATED:
+                    if (job == null) {
+                        return VirtualFile.forFile(dir);
+                    }
+                    content = ReportBlobStore.forJob(job);
+                    break;
+                case ARCHIVE:
+                    content = new ReportArchive(ReportArchive.getFile(dir));
+                    break;
+                case DELTA:
+                    if (job == null) {
+                        return VirtualFile.forFile(dir);
+                    }
+                    // Changed files and the wrapper are stored in place, the others in the report of the base build
+                    return new ManifestVirtualFile(dir, manifest, ReportDeltaStore.forJob(job).getContent(dir, manifest));
+                default:
+                    if (manifest.get(WRAPPER_NAME) == null) {
+                        // Manifest of an incremental update, written before manifests listed the wrapper
+                        return VirtualFile.forFile(dir);
+                    }
+                    // The files are stored in place, the manifest lists the wrapper too
+                    return new ManifestVirtualFile(dir, manifest, new ManifestVirtualFile.ContentLocator() {
+                        public InputStream open(ReportManifest.Entry entry) throws IOException {
+                            return new FileInputStream(ReportManifest.resolve(dir, entry.getPath()));
+                        }
+                    });
+            }
+            // The wrapper is written to the report directory, other files are stored elsewhere
+            return new OverlayVirtualFile(VirtualFile.forFile(dir), new ManifestVirtualFile(dir, manifest, content));
+        }
+        return VirtualFile.forFile(dir);
+    }
+
     protected abstract class BaseHTMLAction implements Action {
         private HtmlPublisherTarget actualHtmlPublisherTarget;
 
@@ -167,11 +584,11 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
 
         public String getDisplayName() {
             String action = actualHtmlPublisherTarget.reportName;
-            return dir().exists() ? action : null;
+            return ReportMetadataCache.exists(dir()) ? action : null;
         }
 
         public String getIconFileName() {
-            return dir().exists() ? "graph.gif" : null;
+            return ReportMetadataCache.exists(dir()) ? "graph.gif" : null;
         }
 
         public boolean shouldLinkToLastBuild() {
@@ -182,7 +599,11 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
          * Serves HTML reports.
          */
         public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
-            DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(this, new FilePath(this.dir()), this.getTitle(), "graph.gif", false);
+            VirtualFile root = this.root();
+            if (ReportFileServer.serve(req, rsp, root, this.isImmutable())) {
+                return;
+            }
+            DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(this, root, this.getTitle(), "graph.gif", false);
             dbs.setIndexFileName(HtmlPublisherTarget.WRAPPER_NAME); // Hudson >= 1.312
             dbs.generateResponse(req, rsp, this);
         }
@@ -190,6 +611,22 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
         protected abstract String getTitle();
 
         protected abstract File dir();
+
+        /**
+         * Gets the tree of files to be served.
+         * @since TODO
+         */
+        protected VirtualFile root() throws IOException {
+            return VirtualFile.forFile(dir());
+        }
+
+        /**
+         * Checks if the served report does not change anymore, so that browsers may keep it without revalidating it.
+         * @since TODO
+         */
+        protected boolean isImmutable() {
+            return false;
+        }
     }
 
     public class HTMLAction extends BaseHTMLAction implements ProminentProjectAction {
@@ -202,21 +639,32 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
 
         @Override
         protected File dir() {
+            Run run = getReportBuild();
+            return run != null ? getBuildArchiveDir(run) : getProjectReportVersions(this.project).getCurrentDir();
+        }
+
+        @Override
+        protected VirtualFile root() throws IOException {
+            Run run = getReportBuild();
+            // The current version is resolved once, so the whole request is served from the same version
+            return run != null ? getBuildArchiveRoot(run) : getProjectArchiveRoot(this.project);
+        }
+
+        /**
+         * Gets the build, whose report should be displayed instead of the project-level one.
+         */
+        private Run getReportBuild() {
             if (this.project instanceof Job) {
                 final Job job = (Job) this.project;
 
                 Run run = getArchiveBuild(job);
 
-                if (run != null) {
-                    File javadocDir = getBuildArchiveDir(run);
-
-                    if (javadocDir.exists()) {
-                        return javadocDir;
-                    }
+                if (run != null && ReportMetadataCache.exists(getBuildArchiveDir(run))) {
+                    return run;
                 }
             }
 
-            return getProjectArchiveDir(this.project);
+            return null;
         }
 
         private Run getArchiveBuild(@Nonnull Job job) {
@@ -304,6 +752,16 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
         protected File dir() {
             return getBuildArchiveDir(this.build);
         }
+
+        @Override
+        protected VirtualFile root() throws IOException {
+            return getBuildArchiveRoot(this.build);
+        }
+
+        @Override
+        protected boolean isImmutable() {
+            return !this.build.isBuilding();
+        }
         
         /**
          * Gets {@link HtmlPublisherTarget}, for which the action has been created.
@@ -347,6 +805,20 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
         hash = 97 * hash + (this.alwaysLinkToLastBuild ? 1 : 0);
         hash = 97 * hash + (this.keepAll ? 1 : 0);
         hash = 97 * hash + (this.allowMissing ? 1 : 0);
+        hash = 97 * hash + this.getStorage().name().hashCode();
+        hash = 97 * hash + this.fullCopyInterval;
+        hash = 97 * hash + (this.incrementalSync ? 1 : 0);
+        hash = 97 * hash + (this.precompress ? 1 : 0);
+        hash = 97 * hash + (this.minify ? 1 : 0);
+        hash = 97 * hash + (this.keepOriginals ? 1 : 0);
+        hash = 97 * hash + (this.includes != null ? this.includes.hashCode() : 0);
+        hash = 97 * hash + (this.excludes != null ? this.excludes.hashCode() : 0);
+        hash = 97 * hash + this.retentionBuilds;
+        hash = 97 * hash + this.retentionDays;
+        hash = 97 * hash + this.retentionSizeMB;
+        hash = 97 * hash + this.maxSizeMB;
+        hash = 97 * hash + this.maxFiles;
+        hash = 97 * hash + (this.wrapperTemplate != null ? this.wrapperTemplate.hashCode() : 0);
         return hash;
     }
 
@@ -377,9 +849,39 @@ public class HtmlPublisherTarget extends AbstractDescribableImpl<HtmlPublisherTa
         if (this.allowMissing != other.allowMissing) {
             return false;
         }
+        if (this.getStorage() != other.getStorage() || this.fullCopyInterval != other.fullCopyInterval) {
+            return false;
+        }
+        if (this.incrementalSync != other.incrementalSync) {
+            return false;
+        }
+        if (this.precompress != other.precompress) {
+            return false;
+        }
+        if (this.minify != other.minify || this.keepOriginals != other.keepOriginals) {
+            return false;
+        }
+        if ((this.includes == null) ? (other.includes != null) : !this.includes.equals(other.includes)) {
+            return false;
+        }
+        if ((this.excludes == null) ? (other.excludes != null) : !this.excludes.equals(other.excludes)) {
+            return false;
+        }
+        if (this.retentionBuilds != other.retentionBuilds || this.retentionDays != other.retentionDays
+                || this.retentionSizeMB != other.retentionSizeMB) {
+            return false;
+        }
+        if (this.maxSizeMB != other.maxSizeMB || this.maxFiles != other.maxFiles) {
+            return false;
+        }
+        if ((this.wrapperTemplate == null) ? (other.wrapperTemplate != null) : !this.wrapperTemplate.equals(other.wrapperTemplate)) {
+            return false;
+        }
         return true;
     }
 
+    private static final long serialVersionUID = 1L;
+
     @Extension
     public static class DescriptorImpl extends Descriptor<HtmlPublisherTarget> {
         public String getDisplayName() { return ""; }
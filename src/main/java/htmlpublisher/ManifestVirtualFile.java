@@ -0,0 +1,161 @@
+package htmlpublisher;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+
+import jenkins.util.VirtualFile;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Exposes a report described by a {@link ReportManifest}, whose files are stored outside of the
+ * report directory. The tree is browsed from the manifest only, without walking the file system.
+ *
+ * @since TODO
+ */
+final class ManifestVirtualFile extends VirtualFile {
+
+    /**
+     * Gives access to the stored content of manifest entries.
+     */
+    interface ContentLocator {
+        @Nonnull
+        InputStream open(@Nonnull ReportManifest.Entry entry) throws IOException;
+    }
+
+    private final File base;
+    private final ReportManifest manifest;
+    private final ContentLocator locator;
+    private final String path;
+
+    /**
+     * @param base Report directory, used to build URIs of the files
+     * @param manifest Manifest listing the report files
+     * @param locator Opens the content of the files
+     */
+    ManifestVirtualFile(@Nonnull File base, @Nonnull ReportManifest manifest, @Nonnull ContentLocator locator) {
+        this(base, manifest, locator, "");
+    }
+
+    private ManifestVirtualFile(File base, ReportManifest manifest, ContentLocator locator, String path) {
+        this.base = base;
+        this.manifest = manifest;
+        this.locator = locator;
+        this.path = path;
+    }
+
+    @Override
+    public String getName() {
+        return path.length() == 0 ? base.getName() : path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public URI toURI() {
+        return path.length() == 0 ? base.toURI() : new File(base, path).toURI();
+    }
+
+    @Override
+    public VirtualFile getParent() {
+        if (path.length() == 0) {
+            return VirtualFile.forFile(base.getParentFile());
+        }
+        int slash = path.lastIndexOf('/');
+        return new ManifestVirtualFile(base, manifest, locator, slash < 0 ? "" : path.substring(0, slash));
+    }
+
+    @Override
+    public boolean isDirectory() throws IOException {
+        return manifest.isDirectory(path);
+    }
+
+    @Override
+    public boolean isFile() throws IOException {
+        return manifest.get(path) != null;
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return isFile() || isDirectory();
+    }
+
+    @Override
+    public VirtualFile[] list() throws IOException {
+        int prefixLength = path.length() == 0 ? 0 : path.length() + 1;
+        Set<String> names = new LinkedHashSet<String>();
+        for (String key : manifest.getEntriesUnder(path).keySet()) {
+            String relative = key.substring(prefixLength);
+            int slash = relative.indexOf('/');
+            names.add(slash < 0 ? relative : relative.substring(0, slash));
+        }
+        List<VirtualFile> children = new ArrayList<VirtualFile>(names.size());
+        for (String name : names) {
+            children.add(child(name));
+        }
+        return children.toArray(new VirtualFile[children.size()]);
+    }
+
+    @Override
+    public String[] list(String glob) throws IOException {
+        int prefixLength = path.length() == 0 ? 0 : path.length() + 1;
+        String pattern = glob.replace('/', File.separatorChar);
+        List<String> matches = new ArrayList<String>();
+        for (Map.Entry<String, ReportManifest.Entry> entry : manifest.getEntriesUnder(path).entrySet()) {
+            String relative = entry.getKey().substring(prefixLength);
+            if (SelectorUtils.matchPath(pattern, relative.replace('/', File.separatorChar))) {
+                matches.add(relative);
+            }
+        }
+        return matches.toArray(new String[matches.size()]);
+    }
+
+    @Override
+    public VirtualFile child(String name) {
+        String normalized = name.replace('\\', '/');
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.length() == 0) {
+            return this;
+        }
+        return new ManifestVirtualFile(base, manifest, locator, path.length() == 0 ? normalized : path + '/' + normalized);
+    }
+
+    @Override
+    public long length() throws IOException {
+        ReportManifest.Entry entry = manifest.get(path);
+        return entry != null ? entry.getSize() : 0;
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        ReportManifest.Entry entry = manifest.get(path);
+        return entry != null ? entry.getLastModified() : 0;
+    }
+
+    @Override
+    public boolean canRead() throws IOException {
+        return exists();
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        ReportManifest.Entry entry = manifest.get(path);
+        if (entry == null) {
+            throw new FileNotFoundException(path + " is not a file of the report " + base);
+        }
+        return locator.open(entry);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,100 @@
+package htmlpublisher;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Refreshes the report actions of matrix configurations when the reports published by their
+ * {@link MatrixProject} are reconfigured. Configurations are reloaded only in that case,
+ * and not each time the actions of the project are computed.
+ *
+ * @since TODO
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class MatrixReportActionsRefresher extends SaveableListener {
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixReportActionsRefresher.class.getName());
+
+    /**
+     * Report targets of each project when the actions of its configurations have been computed.
+     */
+    private static final Map<MatrixProject, List<HtmlPublisherTarget>> KNOWN_TARGETS = new WeakHashMap<MatrixProject, List<HtmlPublisherTarget>>();
+
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+        if (!(o instanceof MatrixProject)) {
+            return;
+        }
+        MatrixProject project = (MatrixProject) o;
+        List<HtmlPublisherTarget> targets = getTargets(project);
+        List<HtmlPublisherTarget> previous;
+        synchronized (KNOWN_TARGETS) {
+            previous = KNOWN_TARGETS.put(project, targets);
+        }
+        if (previous == null ? targets.isEmpty() : previous.equals(targets)) {
+            return;
+        }
+
+        Collection<MatrixConfiguration> configurations = project.getActiveConfigurations();
+        if (configurations == null) {
+            return;
+        }
+        LOGGER.log(Level.FINE, "Reports of {0} have been reconfigured, reloading its configurations", project.getFullName());
+        for (MatrixConfiguration mc : configurations) {
+            try {
+                mc.onLoad(mc.getParent(), mc.getName());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not reload the configuration " + mc.getFullName(), e);
+            }
+        }
+    }
+
+    private static List<HtmlPublisherTarget> getTargets(MatrixProject project) {
+        HtmlPublisher publisher = project.getPublishersList().get(HtmlPublisher.class);
+        return publisher != null
+                ? new ArrayList<HtmlPublisherTarget>(publisher.getReportTargets())
+                : Collections.<HtmlPublisherTarget>emptyList();
+    }
+
+    /**
+     * Records the report targets of the projects once they are loaded, configurations are up to date then.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                return;
+            }
+            for (MatrixProject project : jenkins.getAllItems(MatrixProject.class)) {
+                List<HtmlPublisherTarget> targets = getTargets(project);
+                synchronized (KNOWN_TARGETS) {
+                    if (!KNOWN_TARGETS.containsKey(project)) {
+                        KNOWN_TARGETS.put(project, targets);
+                    }
+                }
+            }
+        }
+    }
+}
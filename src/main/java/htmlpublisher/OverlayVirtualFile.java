@@ -0,0 +1,124 @@
+package htmlpublisher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.Nonnull;
+
+import jenkins.util.VirtualFile;
+
+/**
+ * Merges two trees, files of the upper one hiding the files with the same path in the lower one.
+ * Used to serve the wrapper page written in the report directory on top of report files stored elsewhere.
+ *
+ * @since TODO
+ */
+final class OverlayVirtualFile extends VirtualFile {
+    private final VirtualFile upper;
+    private final VirtualFile lower;
+
+    OverlayVirtualFile(@Nonnull VirtualFile upper, @Nonnull VirtualFile lower) {
+        this.upper = upper;
+        this.lower = lower;
+    }
+
+    @Override
+    public String getName() {
+        return upper.getName();
+    }
+
+    @Override
+    public URI toURI() {
+        return upper.toURI();
+    }
+
+    @Override
+    public VirtualFile getParent() {
+        VirtualFile upperParent = upper.getParent();
+        VirtualFile lowerParent = lower.getParent();
+        if (upperParent == null || lowerParent == null) {
+            return upperParent;
+        }
+        return new OverlayVirtualFile(upperParent, lowerParent);
+    }
+
+    @Override
+    public boolean isDirectory() throws IOException {
+        return upper.isDirectory() || lower.isDirectory();
+    }
+
+    @Override
+    public boolean isFile() throws IOException {
+        return upper.isFile() || (!upper.isDirectory() && lower.isFile());
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return upper.exists() || lower.exists();
+    }
+
+    @Override
+    public VirtualFile[] list() throws IOException {
+        Set<String> names = new LinkedHashSet<String>();
+        if (upper.isDirectory()) {
+            for (VirtualFile child : upper.list()) {
+                names.add(child.getName());
+            }
+        }
+        if (lower.isDirectory()) {
+            for (VirtualFile child : lower.list()) {
+                names.add(child.getName());
+            }
+        }
+        List<VirtualFile> children = new ArrayList<VirtualFile>(names.size());
+        for (String name : names) {
+            children.add(child(name));
+        }
+        return children.toArray(new VirtualFile[children.size()]);
+    }
+
+    @Override
+    public String[] list(String glob) throws IOException {
+        Set<String> paths = new TreeSet<String>();
+        if (upper.isDirectory()) {
+            paths.addAll(Arrays.asList(upper.list(glob)));
+        }
+        if (lower.isDirectory()) {
+            paths.addAll(Arrays.asList(lower.list(glob)));
+        }
+        return paths.toArray(new String[paths.size()]);
+    }
+
+    @Override
+    public VirtualFile child(String name) {
+        return new OverlayVirtualFile(upper.child(name), lower.child(name));
+    }
+
+    @Override
+    public long length() throws IOException {
+        return upper.isFile() ? upper.length() : lower.length();
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        return upper.exists() ? upper.lastModified() : lower.lastModified();
+    }
+
+    @Override
+    public boolean canRead() throws IOException {
+        return upper.exists() ? upper.canRead() : lower.canRead();
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        return upper.isFile() ? upper.open() : lower.open();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,322 @@
+package htmlpublisher;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.annotation.Nonnull;
+
+import jenkins.MasterToSlaveFileCallable;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Report stored as a single zip archive next to the report directory.
+ * Files are read by random access from the archive, open archives are shared between requests.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class ReportArchive implements ManifestVirtualFile.ContentLocator {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportArchive.class.getName());
+
+    /**
+     * Number of archives kept open for serving.
+     */
+    private static final int OPEN_ARCHIVES = Integer.getInteger(ReportArchive.class.getName() + ".openArchives", 16);
+
+    private static final Map<File, Handle> HANDLES = new LinkedHashMap<File, Handle>(16, 0.75f, true);
+
+    private final File file;
+
+    ReportArchive(@Nonnull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the archive of the given report directory.
+     */
+    @Nonnull
+    static File getFile(@Nonnull File reportDir) {
+        return new File(reportDir.getParentFile(), reportDir.getName() + ".zip");
+    }
+
+    public InputStream open(ReportManifest.Entry entry) throws IOException {
+        final Handle handle = Handle.acquire(file);
+        boolean opened = false;
+        try {
+            ZipEntry zipEntry = handle.zip.getEntry(entry.getPath());
+            if (zipEntry == null) {
+                throw new FileNotFoundException(entry.getPath() + " is missing in " + file);
+            }
+            InputStream in = new FilterInputStream(handle.zip.getInputStream(zipEntry)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!closed) {
+                            closed = true;
+                            handle.release();
+                        }
+                    }
+                }
+            };
+            opened = true;
+            return in;
+        } finally {
+            if (!opened) {
+                handle.release();
+            }
+        }
+    }
+
+    /**
+     * Archives the report directory. The archive is created on the node and streamed to the master.
+     * @param reportDir Report directory in the workspace
+     * @param filter Selects the files of the report
+     * @param targetDir Report directory of the build, the archive and the manifest are saved next to it
+     * @param listener Build listener
+     * @return Number of files in the report
+     */
+    static int archive(@Nonnull FilePath reportDir, @Nonnull ReportFileFilter filter, @Nonnull File targetDir,
+            @Nonnull TaskListener listener)
+            throws IOException, InterruptedException {
+        if (!reportDir.exists()) {
+            return 0;
+        }
+        if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+            throw new IOException("Cannot create " + targetDir);
+        }
+
+        File file = getFile(targetDir);
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean success = false;
+        try {
+            ReportManifest manifest;
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                manifest = reportDir.act(new Zip(new RemoteOutputStream(os), ReportTransfer.get().getCompressionLevel(), filter));
+                // RemoteOutputStream is asynchronous, make sure everything has been written
+                VirtualChannel channel = reportDir.getChannel();
+                if (channel instanceof Channel) {
+                    ((Channel) channel).syncLocalIO();
+                }
+            } finally {
+                os.close();
+            }
+            manifest.check(reportDir.getRemote());
+            if (manifest.size() == 0) {
+                return 0;
+            }
+
+            evict(file);
+            if (file.exists()) {
+                Util.deleteFile(file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot move " + tmp + " to " + file);
+            }
+            manifest.save(ReportManifest.getFile(targetDir));
+            success = true;
+
+            listener.getLogger().println("[htmlpublisher] Stored " + manifest.size() + " files (" + manifest.getTotalSize()
+                    + " bytes) in " + file.getName() + " (" + file.length() + " bytes)");
+            return manifest.size();
+        } finally {
+            if (!success && tmp.exists()) {
+                Util.deleteFile(tmp);
+            }
+        }
+    }
+
+    /**
+     * Closes the archive if it is open, so that it can be replaced or deleted.
+     * Files being served keep it open until they are completely sent.
+     */
+    static void evict(@Nonnull File file) {
+        synchronized (HANDLES) {
+            Handle handle = HANDLES.remove(file);
+            if (handle != null) {
+                handle.retire();
+            }
+        }
+    }
+
+    /**
+     * Closes all the archives located in the given directory.
+     */
+    static void evictAll(@Nonnull File dir) {
+        String prefix = dir.getPath() + File.separator;
+        synchronized (HANDLES) {
+            for (Iterator<Map.Entry<File, Handle>> it = HANDLES.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<File, Handle> entry = it.next();
+                if (entry.getKey().getPath().startsWith(prefix)) {
+                    it.remove();
+                    entry.getValue().retire();
+                }
+            }
+        }
+    }
+
+    /**
+     * Open archive shared between requests.
+     * It gets closed once it has been evicted and all the streams read from it are closed.
+     */
+    private static final class Handle {
+        private final ZipFile zip;
+        private final long timestamp;
+        private int references;
+        private boolean retired;
+
+        private Handle(ZipFile zip, long timestamp) {
+            this.zip = zip;
+            this.timestamp = timestamp;
+        }
+
+        static Handle acquire(File file) throws IOException {
+            synchronized (HANDLES) {
+                Handle handle = HANDLES.get(file);
+                if (handle != null && handle.timestamp != file.lastModified()) {
+                    HANDLES.remove(file);
+                    handle.retire();
+                    handle = null;
+                }
+                if (handle == null) {
+                    handle = new Handle(new ZipFile(file), file.lastModified());
+                    HANDLES.put(file, handle);
+                    if (HANDLES.size() > OPEN_ARCHIVES) {
+                        Iterator<Handle> eldest = HANDLES.values().iterator();
+                        eldest.next().retire();
+                        eldest.remove();
+                    }
+                }
+                handle.references++;
+                return handle;
+            }
+        }
+
+        void release() {
+            synchronized (HANDLES) {
+                references--;
+                closeIfUnused();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            closeIfUnused();
+        }
+
+        private void closeIfUnused() {
+            if (retired && references == 0) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close " + zip.getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the archive on the node, and computes the manifest of the archived files.
+     */
+    static final class Zip extends MasterToSlaveFileCallable<ReportManifest> {
+        private final OutputStream out;
+        private final int level;
+        private final ReportFileFilter filter;
+
+        Zip(OutputStream out, int level, ReportFileFilter filter) {
+            this.out = out;
+            this.level = level;
+            this.filter = filter;
+        }
+
+        @Override
+        public ReportManifest invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            ReportManifest manifest = new ReportManifest(ReportStorage.ARCHIVE);
+            String[] files = dir.isDirectory() ? filter.scan(dir) : new String[0];
+            if (files.length == 0) {
+                // Empty archives are not supported on Java 6
+                out.close();
+                return manifest;
+            }
+
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out));
+            zip.setLevel(level);
+            try {
+                byte[] buf = new byte[8192];
+                for (String name : files) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    File f = new File(dir, name);
+                    String path = name.replace(File.separatorChar, '/');
+                    ZipEntry entry = new ZipEntry(path);
+                    entry.setTime(f.lastModified());
+                    zip.putNextEntry(entry);
+
+                    MessageDigest md = ReportManifest.newDigest();
+                    long size = 0;
+                    InputStream in = new FileInputStream(f);
+                    try {
+                        int len;
+                        while ((len = in.read(buf)) >= 0) {
+                            md.update(buf, 0, len);
+                            zip.write(buf, 0, len);
+                            size += len;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    zip.closeEntry();
+                    manifest.put(new ReportManifest.Entry(path, size, f.lastModified(), Util.toHexString(md.digest())));
+                }
+            } finally {
+                zip.close();
+            }
+            return manifest;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Closes the archives of deleted builds, so that they can be removed.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            evictAll(run.getRootDir());
+        }
+    }
+}
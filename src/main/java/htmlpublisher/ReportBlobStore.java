@@ -0,0 +1,315 @@
+package htmlpublisher;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Content-addressed store of report files, shared by all builds of a job.
+ * Each file is stored once under its content hash, builds only keep a {@link ReportManifest}
+ * referencing the stored files. Files no longer referenced by any manifest are removed
+ * in the background after builds get deleted.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class ReportBlobStore implements ManifestVirtualFile.ContentLocator {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportBlobStore.class.getName());
+
+    /**
+     * Delay before unreferenced files get removed, so that deleting many builds triggers a single sweep.
+     */
+    private static final long SWEEP_DELAY_MINUTES = Long.getLong(ReportBlobStore.class.getName() + ".sweepDelayMinutes", 5);
+
+    private static final String INCOMING_PREFIX = ".incoming-";
+
+    /**
+     * Publications hold the read lock of the store, sweeps hold the write lock.
+     * This prevents a sweep from removing files transferred for a manifest, which has not been saved yet.
+     */
+    private static final ConcurrentMap<File, ReadWriteLock> LOCKS = new ConcurrentHashMap<File, ReadWriteLock>();
+
+    private static final Set<File> PENDING_SWEEPS = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final File root;
+
+    ReportBlobStore(@Nonnull File root) {
+        this.root = root;
+    }
+
+    /**
+     * Gets the store shared by the builds of the given job.
+     */
+    @Nonnull
+    static ReportBlobStore forJob(@Nonnull Job<?, ?> job) {
+        return new ReportBlobStore(new File(new File(job.getRootDir(), "htmlreports"), ".blobs"));
+    }
+
+    /**
+     * Gets the file storing the content with the given digest.
+     * @throws IllegalArgumentException If the digest is not valid
+     */
+    @Nonnull
+    File getBlob(@Nonnull String digest) {
+        if (!ReportManifest.isDigest(digest)) {
+            throw new IllegalArgumentException("Invalid digest " + digest);
+        }
+        return new File(new File(root, digest.substring(0, 2)), digest);
+    }
+
+    public InputStream open(ReportManifest.Entry entry) throws IOException {
+        return new FileInputStream(getBlob(entry.getDigest()));
+    }
+
+    private ReadWriteLock getLock() {
+        ReadWriteLock lock = LOCKS.get(root);
+        if (lock == null) {
+            ReadWriteLock newLock = new ReentrantReadWriteLock();
+            lock = LOCKS.putIfAbsent(root, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Archives the report directory into the store.
+     * Only files, which are not stored yet, are transferred from the node.
+     * @param reportDir Report directory in the workspace
+     * @param filter Selects the files of the report
+     * @param targetDir Report directory of the build, the manifest is saved next to it
+     * @param listener Build listener
+     * @return Number of files in the report
+     */
+    int archive(@Nonnull FilePath reportDir, @Nonnull ReportFileFilter filter, @Nonnull File targetDir,
+            @Nonnull TaskListener listener)
+            throws IOException, InterruptedException {
+        if (!reportDir.exists()) {
+            return 0;
+        }
+
+        Lock lock = getLock().readLock();
+        lock.lock();
+        try {
+            ReportManifest manifest = ReportManifest.scan(reportDir, new ReportManifest.Scan(ReportStorage.DEDUPLICATED, filter));
+
+            // Transfer a single copy of each missing content
+            Map<String, String> missing = new LinkedHashMap<String, String>();
+            Set<String> stored = new HashSet<String>();
+            for (ReportManifest.Entry entry : manifest.getEntries()) {
+                String digest = entry.getDigest();
+                if (!missing.containsKey(digest) && !stored.contains(digest)) {
+                    if (isStored(digest)) {
+                        stored.add(digest);
+                    } else {
+                        missing.put(digest, entry.getPath());
+                    }
+                }
+            }
+
+            long storedBytes = 0;
+            if (!missing.isEmpty()) {
+                File incoming = new File(root, INCOMING_PREFIX + UUID.randomUUID());
+                try {
+                    ReportTransfer.get().copy(reportDir, new SelectedFiles(missing.values()), new FilePath(incoming), listener);
+                    for (String path : missing.values()) {
+                        File f = ReportManifest.resolve(incoming, path);
+                        if (!f.isFile()) {
+                            throw new IOException("File " + path + " disappeared from " + reportDir + " while it was being archived");
+                        }
+                        // Do not trust the node, the file might also have changed since it has been scanned
+                        String digest = ReportManifest.digest(f);
+                        manifest.put(new ReportManifest.Entry(path, f.length(), f.lastModified(), digest));
+                        storedBytes += f.length();
+                        store(f, digest);
+                    }
+                } finally {
+                    Util.deleteRecursive(incoming);
+                }
+
+                for (ReportManifest.Entry entry : manifest.getEntries()) {
+                    if (!getBlob(entry.getDigest()).isFile()) {
+                        throw new IOException("File " + entry.getPath() + " has been modified in " + reportDir + " while it was being archived");
+                    }
+                }
+            }
+
+            listener.getLogger().println("[htmlpublisher] Stored " + missing.size() + " new files (" + storedBytes
+                    + " bytes), reused " + (manifest.size() - missing.size()) + " files already stored for the job");
+
+            if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+                throw new IOException("Cannot create " + targetDir);
+            }
+            manifest.save(ReportManifest.getFile(targetDir));
+            return manifest.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the content with the given digest is stored.
+     * The stored file is hashed again, a corrupted one is removed so that it gets transferred again.
+     */
+    private boolean isStored(String digest) throws IOException {
+        File blob = getBlob(digest);
+        if (!blob.isFile()) {
+            return false;
+        }
+        if (ReportManifest.digest(blob).equals(digest)) {
+            return true;
+        }
+        LOGGER.log(Level.WARNING, "Removing {0}, its content does not match its digest", blob);
+        Util.deleteFile(blob);
+        return false;
+    }
+
+    private void store(File f, String digest) throws IOException {
+        File blob = getBlob(digest);
+        if (blob.isFile()) {
+            // Stored concurrently by another build
+            Util.deleteFile(f);
+            return;
+        }
+        File dir = blob.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        if (!f.renameTo(blob) && !blob.isFile()) {
+            throw new IOException("Cannot move " + f + " to " + blob);
+        }
+    }
+
+    /**
+     * Removes the stored files, which are not referenced by any report of the job anymore.
+     * @return False if the store is in use and the sweep has to be retried later
+     */
+    boolean sweep(@Nonnull Job<?, ?> job) throws IOException {
+        if (!root.isDirectory()) {
+            return true;
+        }
+        Lock lock = getLock().writeLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            Set<String> referenced = new HashSet<String>();
+            collectDigests(new File(job.getRootDir(), "htmlreports"), referenced);
+            File[] builds = job.getBuildDir().listFiles();
+            if (builds != null) {
+                for (File build : builds) {
+                    if (build.isDirectory() && !Util.isSymlink(build)) {
+                        collectDigests(new File(build, "htmlreports"), referenced);
+                    }
+                }
+            }
+
+            int removed = 0;
+            File[] dirs = root.listFiles();
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    if (dir.getName().startsWith(INCOMING_PREFIX)) {
+                        // Left over by an interrupted publication
+                        Util.deleteRecursive(dir);
+                        continue;
+                    }
+                    File[] blobs = dir.listFiles();
+                    if (blobs == null) {
+                        continue;
+                    }
+                    for (File blob : blobs) {
+                        if (!referenced.contains(blob.getName())) {
+                            Util.deleteFile(blob);
+                            removed++;
+                        }
+                    }
+                }
+            }
+            LOGGER.log(Level.FINE, "Removed {0} unreferenced report files from {1}", new Object[] {removed, root});
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void collectDigests(File reportsDir, Set<String> digests) throws IOException {
+        File[] manifests = reportsDir.listFiles();
+        if (manifests == null) {
+            return;
+        }
+        for (File manifest : manifests) {
+            if (manifest.isFile() && manifest.getName().endsWith(".manifest")) {
+                ReportManifest m = ReportManifest.read(manifest);
+                if (m.getStorage() == ReportStorage.DEDUPLICATED) {
+                    for (ReportManifest.Entry entry : m.getEntries()) {
+                        digests.add(entry.getDigest());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules a sweep of the store of the job.
+     * Several requests within {@link #SWEEP_DELAY_MINUTES} result in a single sweep.
+     */
+    static void scheduleSweep(@Nonnull final Job<?, ?> job) {
+        final ReportBlobStore store = forJob(job);
+        if (!store.root.isDirectory() || !PENDING_SWEEPS.add(store.root)) {
+            return;
+        }
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                PENDING_SWEEPS.remove(store.root);
+                try {
+                    if (!store.sweep(job)) {
+                        scheduleSweep(job);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to remove unreferenced report files of " + job.getFullName(), e);
+                }
+            }
+        }, SWEEP_DELAY_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Releases the files of deleted builds.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            scheduleSweep(run.getParent());
+        }
+    }
+}
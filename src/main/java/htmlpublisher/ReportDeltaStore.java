@@ -0,0 +1,328 @@
+package htmlpublisher;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Stores the reports kept for each build of a job as changes to a periodic full copy.
+ * Every few builds, the report is copied in full into the report directory of the build, which becomes the base.
+ * The builds in between only store the files, which have been added or changed since the base,
+ * and their manifest lists the whole report. Files missing from their report directory are served from the base.
+ * <p>
+ * Removing the report of a delta build only removes its own files. Before the report of a base is removed,
+ * the next report based on it is completed with the files of the base and becomes the new base.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class ReportDeltaStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportDeltaStore.class.getName());
+
+    /**
+     * Publications hold the read lock of the job, removals of base reports hold the write lock.
+     * This prevents a publication from referencing a base, which is being removed.
+     */
+    private static final ConcurrentMap<File, ReadWriteLock> LOCKS = new ConcurrentHashMap<File, ReadWriteLock>();
+
+    private final Job<?, ?> job;
+
+    private ReportDeltaStore(@Nonnull Job<?, ?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Gets the store of the reports of the given job.
+     */
+    @Nonnull
+    static ReportDeltaStore forJob(@Nonnull Job<?, ?> job) {
+        return new ReportDeltaStore(job);
+    }
+
+    private ReadWriteLock getLock() {
+        File key = job.getRootDir();
+        ReadWriteLock lock = LOCKS.get(key);
+        if (lock == null) {
+            ReadWriteLock newLock = new ReentrantReadWriteLock();
+            lock = LOCKS.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Gets the directory of the report of a build.
+     * @param name Sanitized name of the report
+     * @return {@code null} if the build does not exist anymore
+     */
+    @CheckForNull
+    private File getReportDir(int number, @Nonnull String name) {
+        Run<?, ?> run = job.getBuildByNumber(number);
+        return run != null ? new File(new File(run.getRootDir(), "htmlreports"), name) : null;
+    }
+
+    /**
+     * Reads the manifest of a report stored by this store.
+     * @return {@code null} if the report does not exist, or has been stored differently
+     */
+    @CheckForNull
+    private static ReportManifest readManifest(@CheckForNull File reportDir) {
+        if (reportDir == null) {
+            return null;
+        }
+        File file = ReportManifest.getFile(reportDir);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ReportManifest manifest = ReportManifest.read(file);
+            return manifest.getStorage() == ReportStorage.DELTA ? manifest : null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read the manifest of " + reportDir, e);
+            return null;
+        }
+    }
+
+    /**
+     * Archives the report of a build, as a full copy or as the changes since the base of the previous builds.
+     * @param build Build publishing the report
+     * @param reportDir Report directory in the workspace
+     * @param filter Selects the files of the report
+     * @param targetDir Report directory of the build, the manifest is saved next to it
+     * @param fullCopyInterval Number of builds after which the report is copied in full again
+     * @param listener Build listener
+     * @return Number of files in the report
+     */
+    int archive(@Nonnull Run<?, ?> build, @Nonnull FilePath reportDir, @Nonnull ReportFileFilter filter,
+            @Nonnull File targetDir, int fullCopyInterval, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException {
+        Lock lock = getLock().readLock();
+        // Interruptible, so that stopped builds do not wait for the removal of a base
+        lock.lockInterruptibly();
+        try {
+            String name = targetDir.getName();
+            ReportManifest previous = null;
+            int baseNumber = 0;
+            for (Run<?, ?> run = build.getPreviousBuild(); run != null && build.getNumber() - run.getNumber() < fullCopyInterval;
+                    run = run.getPreviousBuild()) {
+                previous = readManifest(new File(new File(run.getRootDir(), "htmlreports"), name));
+                if (previous != null) {
+                    baseNumber = previous.getBase() > 0 ? previous.getBase() : run.getNumber();
+                    break;
+                }
+            }
+            File baseDir = null;
+            ReportManifest base = null;
+            if (baseNumber > 0 && build.getNumber() - baseNumber < fullCopyInterval) {
+                baseDir = getReportDir(baseNumber, name);
+                base = readManifest(baseDir);
+                if (base != null && base.getBase() > 0) {
+                    // Not a full copy, the base has been replaced meanwhile
+                    base = null;
+                }
+            }
+
+            // Files with the same size and modification time as in the previous report are not hashed again
+            ReportManifest manifest = ReportManifest.scan(reportDir, new ReportManifest.Scan(ReportStorage.DELTA, previous, filter));
+            if (manifest.size() == 0) {
+                return 0;
+            }
+            List<String> changed = new ArrayList<String>();
+            for (ReportManifest.Entry entry : manifest.getEntries()) {
+                ReportManifest.Entry known = base != null ? base.get(entry.getPath()) : null;
+                if (known == null || !known.getDigest().equals(entry.getDigest())) {
+                    changed.add(entry.getPath());
+                }
+            }
+            ReportTransfer.get().copy(reportDir, new SelectedFiles(changed), new FilePath(targetDir), listener);
+            for (String path : changed) {
+                File f = ReportManifest.resolve(targetDir, path);
+                if (!f.isFile()) {
+                    throw new IOException("File " + path + " disappeared from " + reportDir + " while it was being archived");
+                }
+            }
+
+            if (base != null) {
+                manifest.setBase(baseNumber);
+                listener.getLogger().println("[htmlpublisher] Stored " + changed.size() + " added or changed files, "
+                        + (manifest.size() - changed.size()) + " files are served from the report of build #" + baseNumber);
+            } else {
+                listener.getLogger().println("[htmlpublisher] Stored a full copy of the report");
+            }
+            if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+                throw new IOException("Cannot create " + targetDir);
+            }
+            manifest.save(ReportManifest.getFile(targetDir));
+            return manifest.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the locator of the files of a report.
+     * @param reportDir Report directory
+     * @param manifest Manifest of the report
+     */
+    @Nonnull
+    ManifestVirtualFile.ContentLocator getContent(@Nonnull final File reportDir, @Nonnull ReportManifest manifest) {
+        final File baseDir = manifest.getBase() > 0 ? getReportDir(manifest.getBase(), reportDir.getName()) : null;
+        return new ManifestVirtualFile.ContentLocator() {
+            public InputStream open(ReportManifest.Entry entry) throws IOException {
+                File f = ReportManifest.resolve(reportDir, entry.getPath());
+                if (!f.isFile() && baseDir != null) {
+                    f = ReportManifest.resolve(baseDir, entry.getPath());
+                }
+                return new FileInputStream(f);
+            }
+        };
+    }
+
+    /**
+     * Prepares the removal of the report of a build.
+     * If other reports are based on it, the next one becomes the new base: it receives the files
+     * of the removed report, which it does not store, and the other reports receive the files, which differ
+     * between the removed report and the new base. The report itself is left for the caller to remove.
+     * @param run Build, whose report is removed
+     * @param name Sanitized name of the report
+     */
+    void release(@Nonnull Run<?, ?> run, @Nonnull String name) throws IOException {
+        File dir = new File(new File(run.getRootDir(), "htmlreports"), name);
+        ReportManifest removed = readManifest(dir);
+        if (removed == null || removed.getBase() > 0) {
+            // Reports of the builds in between are not referenced
+            return;
+        }
+
+        Lock lock = getLock().writeLock();
+        lock.lock();
+        try {
+            List<Run<?, ?>> dependents = new ArrayList<Run<?, ?>>();
+            List<ReportManifest> manifests = new ArrayList<ReportManifest>();
+            for (Run<?, ?> next = run.getNextBuild(); next != null; next = next.getNextBuild()) {
+                ReportManifest manifest = readManifest(new File(new File(next.getRootDir(), "htmlreports"), name));
+                if (manifest == null) {
+                    continue;
+                }
+                if (manifest.getBase() != run.getNumber()) {
+                    break;
+                }
+                dependents.add(next);
+                manifests.add(manifest);
+            }
+            if (dependents.isEmpty()) {
+                return;
+            }
+
+            Run<?, ?> newBase = dependents.get(0);
+            File newBaseDir = new File(new File(newBase.getRootDir(), "htmlreports"), name);
+            ReportManifest newBaseManifest = manifests.get(0);
+
+            // Other reports keep the files of the removed report, which the new base does not have
+            for (int i = 1; i < dependents.size(); i++) {
+                File dependentDir = new File(new File(dependents.get(i).getRootDir(), "htmlreports"), name);
+                ReportManifest manifest = manifests.get(i);
+                for (ReportManifest.Entry entry : manifest.getEntries()) {
+                    File f = ReportManifest.resolve(dependentDir, entry.getPath());
+                    ReportManifest.Entry inNewBase = newBaseManifest.get(entry.getPath());
+                    if (!f.isFile() && (inNewBase == null || !inNewBase.getDigest().equals(entry.getDigest()))) {
+                        FileUtils.copyFile(ReportManifest.resolve(dir, entry.getPath()), f);
+                    }
+                }
+                manifest.setBase(newBase.getNumber());
+                manifest.save(ReportManifest.getFile(dependentDir));
+                ReportMetadataCache.invalidate(dependentDir);
+            }
+
+            // The new base receives the files it shares with the removed report
+            for (ReportManifest.Entry entry : newBaseManifest.getEntries()) {
+                File f = ReportManifest.resolve(newBaseDir, entry.getPath());
+                if (!f.isFile()) {
+                    File source = ReportManifest.resolve(dir, entry.getPath());
+                    File parent = f.getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs()) {
+                        throw new IOException("Cannot create " + parent);
+                    }
+                    if (!source.renameTo(f)) {
+                        FileUtils.copyFile(source, f);
+                    }
+                }
+            }
+            newBaseManifest.setBase(0);
+            newBaseManifest.save(ReportManifest.getFile(newBaseDir));
+            ReportMetadataCache.invalidate(newBaseDir);
+
+            // The removed report cannot be used as a base anymore, even if it is not removed yet
+            Util.deleteFile(ReportManifest.getFile(dir));
+
+            ReportUsage usage = ReportUsage.forJob(job);
+            for (Run<?, ?> dependent : dependents) {
+                usage.record(name, dependent, ReportUsage.measure(new File(new File(dependent.getRootDir(), "htmlreports"), name)));
+            }
+            LOGGER.log(Level.FINE, "The report {0} of {1} replaces the one of {2} as a base of {3} reports",
+                    new Object[] {name, newBase.getFullDisplayName(), run.getFullDisplayName(), dependents.size()});
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prepares the removal of all the reports of a build.
+     */
+    void releaseAll(@Nonnull Run<?, ?> run) {
+        File[] files = new File(run.getRootDir(), "htmlreports").listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (file.isFile() && fileName.endsWith(".manifest")) {
+                String name = fileName.substring(0, fileName.length() - ".manifest".length());
+                try {
+                    release(run, name);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to move the report " + name + " of " + run.getFullDisplayName()
+                            + " to the next build, the reports of the following builds might be incomplete", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the base reports of deleted builds to the next builds, before the files get deleted.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            forJob(run.getParent()).releaseAll(run);
+        }
+    }
+}
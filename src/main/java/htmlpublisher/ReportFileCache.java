@@ -0,0 +1,156 @@
+package htmlpublisher;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Keeps the content of small report files in memory, so that the files of busy reports are not read
+ * again for each request. The cache is bounded by the total size of the files, the least recently used
+ * files are evicted first. Files are keyed by their location and entity tag, so a new publication
+ * of a report never hits the files of the previous one.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class ReportFileCache {
+
+    /**
+     * Files bigger than this size in bytes are not cached.
+     */
+    static final long MAX_FILE_SIZE = Long.getLong(ReportFileCache.class.getName() + ".maxFileSize", 256 * 1024);
+
+    private static final ReportFileCache INSTANCE = new ReportFileCache(
+            HtmlPublisher.DescriptorImpl.DEFAULT_FILE_CACHE_SIZE * 1024L * 1024L);
+
+    private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long maxSize;
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize Maximum total size of the cached files in bytes, 0 disables the cache
+     */
+    ReportFileCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Nonnull
+    public static ReportFileCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the content of a file.
+     * @return {@code null} if the file is not cached
+     */
+    @CheckForNull
+    synchronized byte[] get(@Nonnull String key) {
+        byte[] content = entries.get(key);
+        if (content != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return content;
+    }
+
+    /**
+     * Caches the content of a file, evicting the least recently used files if needed.
+     */
+    synchronized void put(@Nonnull String key, @Nonnull byte[] content) {
+        if (content.length > maxSize) {
+            return;
+        }
+        byte[] previous = entries.put(key, content);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += content.length;
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used files until the cache fits within its maximum size.
+     */
+    private void evict() {
+        for (Iterator<byte[]> it = entries.values().iterator(); size > maxSize && it.hasNext();) {
+            size -= it.next().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Checks if the cache is enabled.
+     */
+    synchronized boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Sets the maximum total size of the cached files.
+     * Files are evicted at once if the cache is bigger, disabling the cache releases all of them.
+     * @param maxSize Maximum size in bytes, 0 disables the cache
+     */
+    synchronized void setMaxSize(long maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        evict();
+    }
+
+    /**
+     * Gets the maximum total size of the cached files in bytes.
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Removes all the cached files and resets the statistics.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the total size of the cached files in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the ratio of requests served from the cache, in percent.
+     */
+    public synchronized int getHitRatio() {
+        long requests = hits + misses;
+        return requests > 0 ? (int) (hits * 100 / requests) : 0;
+    }
+}
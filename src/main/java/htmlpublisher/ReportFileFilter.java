@@ -0,0 +1,214 @@
+package htmlpublisher;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+
+/**
+ * Ant-style patterns selecting the files of a report directory, which are published,
+ * and limits of the size and number of the published files.
+ * The patterns and the limits are evaluated on the node, so that the files left out are never transferred.
+ *
+ * @since TODO
+ */
+final class ReportFileFilter implements Serializable {
+
+    /**
+     * Selects all the files of the directory.
+     */
+    static final ReportFileFilter ALL = new ReportFileFilter(null, null);
+
+    private static final String ALL_FILES = "**/*";
+
+    private final String includes;
+    private final String excludes;
+    private final long maxSize;
+    private final int maxFiles;
+
+    /**
+     * @param includes Comma separated patterns of the included files, {@code null} to include all files
+     * @param excludes Comma separated patterns of the excluded files, {@code null} to exclude none
+     */
+    ReportFileFilter(@CheckForNull String includes, @CheckForNull String excludes) {
+        this(includes != null ? includes : ALL_FILES, excludes, 0, 0);
+    }
+
+    private ReportFileFilter(@Nonnull String includes, @CheckForNull String excludes, long maxSize, int maxFiles) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Gets a filter selecting the same files, up to the given limits.
+     * @param maxSize Maximum total size of the files in bytes, 0 means no limit
+     * @param maxFiles Maximum number of files, 0 means no limit
+     */
+    @Nonnull
+    ReportFileFilter withLimits(long maxSize, int maxFiles) {
+        return new ReportFileFilter(includes, excludes, Math.max(0, maxSize), Math.max(0, maxFiles));
+    }
+
+    /**
+     * Gets a filter selecting all the files within the same limits, for the files derived from the selected ones.
+     */
+    @Nonnull
+    ReportFileFilter limitsOnly() {
+        return ALL.withLimits(maxSize, maxFiles);
+    }
+
+    /**
+     * Checks if some files are left out.
+     */
+    boolean isFiltering() {
+        return !includes.equals(ALL_FILES) || excludes != null;
+    }
+
+    /**
+     * Checks if the size or the number of the selected files is limited.
+     */
+    boolean isLimited() {
+        return maxSize > 0 || maxFiles > 0;
+    }
+
+    /**
+     * Lists the selected files of the directory.
+     * If the files exceed the limits, only the first files in the order of their paths are listed,
+     * up to the first one exceeding a limit.
+     * @return Paths relative to the directory
+     */
+    @Nonnull
+    String[] scan(@Nonnull File dir) {
+        String[] files = scanPatterns(dir);
+        if (!isLimited()) {
+            return files;
+        }
+        Arrays.sort(files);
+        int count = 0;
+        long size = 0;
+        while (count < files.length && (maxFiles == 0 || count < maxFiles)) {
+            long length = new File(dir, files[count]).length();
+            if (maxSize > 0 && size + length > maxSize) {
+                break;
+            }
+            size += length;
+            count++;
+        }
+        return count < files.length ? Arrays.copyOf(files, count) : files;
+    }
+
+    /**
+     * Checks if the files matching the patterns exceed the limits.
+     * The sizes of the files are summed only until the limit is exceeded.
+     * @return Description of the exceeded limit, {@code null} if the files are within the limits
+     */
+    @CheckForNull
+    String checkLimits(@Nonnull File dir) {
+        if (!isLimited() || !dir.isDirectory()) {
+            return null;
+        }
+        String[] files = scanPatterns(dir);
+        if (maxFiles > 0 && files.length > maxFiles) {
+            return files.length + " files exceed the limit of " + maxFiles + " files";
+        }
+        if (maxSize > 0) {
+            long size = 0;
+            for (String file : files) {
+                size += new File(dir, file).length();
+                if (size > maxSize) {
+                    return "the files exceed the limit of " + FileUtils.byteCountToDisplaySize(maxSize);
+                }
+            }
+        }
+        return null;
+    }
+
+    private String[] scanPatterns(File dir) {
+        return Util.createFileSet(dir, includes, excludes).getDirectoryScanner(new Project()).getIncludedFiles();
+    }
+
+    /**
+     * Gets a scanner visiting the selected files, to transfer them.
+     */
+    @Nonnull
+    DirScanner toScanner() {
+        return isLimited() ? new Limited(this) : new DirScanner.Glob(includes, excludes);
+    }
+
+    /**
+     * Describes the limits, like {@code 1000 files, 100 MB}.
+     * @return {@code null} if there is no limit
+     */
+    @CheckForNull
+    String describeLimits() {
+        if (!isLimited()) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder();
+        if (maxFiles > 0) {
+            b.append(maxFiles).append(" files");
+        }
+        if (maxSize > 0) {
+            b.append(maxFiles > 0 ? ", " : "").append(FileUtils.byteCountToDisplaySize(maxSize));
+        }
+        return b.toString();
+    }
+
+    @Override
+    public String toString() {
+        return excludes != null ? includes + " excluding " + excludes : includes;
+    }
+
+    /**
+     * Visits the files selected by a filter, which has limits.
+     */
+    private static final class Limited extends DirScanner {
+        private final ReportFileFilter filter;
+
+        Limited(ReportFileFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public void scan(File dir, FileVisitor visitor) throws IOException {
+            for (String path : filter.scan(dir)) {
+                visitor.visit(new File(dir, path), path);
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Checks the limits on the node, before any file is transferred.
+     */
+    static final class Check extends MasterToSlaveFileCallable<String> {
+        private final ReportFileFilter filter;
+
+        Check(@Nonnull ReportFileFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public String invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            return filter.checkLimits(dir);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
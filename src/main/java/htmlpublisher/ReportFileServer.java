@@ -0,0 +1,460 @@
+package htmlpublisher;
+
+import hudson.model.DirectoryBrowserSupport;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.util.VirtualFile;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the files of a report with validators and cache headers.
+ * Directory listings, archives of the report and other special requests are left to
+ * {@link hudson.model.DirectoryBrowserSupport}. The files get the same Content Security Policy
+ * as the ones it serves, as configured by the {@code hudson.model.DirectoryBrowserSupport.CSP} system property.
+ * <p>
+ * Reports of completed builds never change, so browsers may keep them for a long time.
+ * Other reports have to be revalidated, their entity tags change with each publication.
+ * Precompressed variants of the files are sent to browsers accepting them.
+ * Single and multiple byte ranges are supported, so that large files can be resumed and seeked.
+ *
+ * @since TODO
+ */
+final class ReportFileServer {
+
+    /**
+     * Time in seconds, during which browsers may reuse the reports of completed builds without revalidating them.
+     */
+    private static final long IMMUTABLE_MAX_AGE = Long.getLong(ReportFileServer.class.getName() + ".immutableMaxAge",
+            TimeUnit.DAYS.toSeconds(365));
+
+    /**
+     * Requests with more ranges get the whole file.
+     */
+    static final int MAX_RANGES = 16;
+
+    /**
+     * Content Security Policy of the files served by {@link hudson.model.DirectoryBrowserSupport} when it is not configured.
+     */
+    static final String DEFAULT_CSP = "sandbox; default-src 'none'; img-src 'self'; style-src 'self';";
+
+    private ReportFileServer() {
+    }
+
+    /**
+     * Serves the requested file of the report.
+     * @param root Root of the report
+     * @param immutable True if the report does not change anymore
+     * @return False if the request is not for a file of the report, it should be served by {@link hudson.model.DirectoryBrowserSupport} then
+     */
+    static boolean serve(@Nonnull StaplerRequest req, @Nonnull StaplerResponse rsp, @Nonnull VirtualFile root, boolean immutable)
+            throws IOException {
+        String method = req.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method) || req.getParameter("pattern") != null) {
+            return false;
+        }
+        List<String> path = parsePath(req.getRestOfPath());
+        if (path == null) {
+            return false;
+        }
+        VirtualFile file = root;
+        for (String name : path) {
+            file = file.child(name);
+        }
+        if (!file.isFile()) {
+            return false;
+        }
+        setContentSecurityPolicy(rsp);
+
+        long length = file.length();
+        long lastModified = file.lastModified();
+        // The location of the root identifies the build, or the published version of project-level reports
+        String etag = '"' + Long.toHexString(lastModified) + '-' + Long.toHexString(length) + '-'
+                + Integer.toHexString(root.toURI().hashCode());
+
+        File variant = getPrecompressedVariant(root, file, path);
+        if (variant != null) {
+            rsp.setHeader("Vary", "Accept-Encoding");
+            // Ranges are served from the original file
+            if (acceptsGzip(req) && req.getHeader("Range") == null) {
+                rsp.setHeader("Content-Encoding", "gzip");
+                etag += "-gz";
+                length = variant.length();
+                file = VirtualFile.forFile(variant);
+            }
+        }
+        etag += '"';
+
+        rsp.setHeader("ETag", etag);
+        if (lastModified > 0) {
+            rsp.setDateHeader("Last-Modified", lastModified);
+        }
+        rsp.setHeader("Cache-Control", immutable ? "private, max-age=" + IMMUTABLE_MAX_AGE : "private, no-cache");
+        if (isNotModified(req, etag, lastModified)) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+
+        String fileName = path.get(path.size() - 1);
+        String contentType = req.getStapler().getServletContext().getMimeType(fileName);
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        rsp.setHeader("Accept-Ranges", "bytes");
+
+        List<long[]> ranges = null;
+        String range = req.getHeader("Range");
+        if (range != null && isRangeApplicable(req, etag, lastModified)) {
+            ranges = parseRanges(range, length);
+            if (ranges != null && ranges.isEmpty()) {
+                rsp.setHeader("Content-Range", "bytes */" + length);
+                rsp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return true;
+            }
+        }
+
+        File localFile = toLocalFile(file);
+        boolean head = "HEAD".equals(method);
+        if (ranges == null) {
+            rsp.setContentType(contentType);
+            rsp.setHeader("Content-Length", Long.toString(length));
+            if (!head) {
+                byte[] content = getCachedContent(file, etag, length);
+                if (content != null) {
+                    rsp.getOutputStream().write(content);
+                } else {
+                    copy(file, localFile, 0, length, rsp.getOutputStream());
+                }
+            }
+        } else if (ranges.size() == 1) {
+            long[] r = ranges.get(0);
+            rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            rsp.setContentType(contentType);
+            rsp.setHeader("Content-Range", "bytes " + r[0] + '-' + r[1] + '/' + length);
+            rsp.setHeader("Content-Length", Long.toString(r[1] - r[0] + 1));
+            if (!head) {
+                copy(file, localFile, r[0], r[1] - r[0] + 1, rsp.getOutputStream());
+            }
+        } else {
+            String boundary = UUID.randomUUID().toString();
+            List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+            long contentLength = 0;
+            for (long[] r : ranges) {
+                byte[] header = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes "
+                        + r[0] + '-' + r[1] + '/' + length + "\r\n\r\n").getBytes("US-ASCII");
+                partHeaders.add(header);
+                contentLength += header.length + r[1] - r[0] + 1;
+            }
+            byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+            contentLength += trailer.length;
+
+            rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            rsp.setContentType("multipart/byteranges; boundary=" + boundary);
+            rsp.setHeader("Content-Length", Long.toString(contentLength));
+            if (!head) {
+                OutputStream out = rsp.getOutputStream();
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] r = ranges.get(i);
+                    out.write(partHeaders.get(i));
+                    copy(file, localFile, r[0], r[1] - r[0] + 1, out);
+                }
+                out.write(trailer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the Content Security Policy headers, like {@link hudson.model.DirectoryBrowserSupport} does.
+     * The policy is read on each request, so that it can be changed at runtime.
+     */
+    private static void setContentSecurityPolicy(StaplerResponse rsp) {
+        String csp = System.getProperty(DirectoryBrowserSupport.class.getName() + ".CSP", DEFAULT_CSP);
+        if (csp.trim().length() > 0) {
+            rsp.setHeader("Content-Security-Policy", csp);
+            rsp.setHeader("X-Content-Security-Policy", csp);
+            rsp.setHeader("X-WebKit-CSP", csp);
+        }
+    }
+
+    /**
+     * Gets the content of a small file from {@link ReportFileCache}, and caches it on misses.
+     * @return {@code null} if the file should not be cached
+     */
+    @CheckForNull
+    private static byte[] getCachedContent(VirtualFile file, String etag, long length) {
+        ReportFileCache cache = ReportFileCache.get();
+        if (length > ReportFileCache.MAX_FILE_SIZE || !cache.isEnabled()) {
+            return null;
+        }
+        String key = file.toURI() + " " + etag;
+        byte[] content = cache.get(key);
+        if (content == null) {
+            try {
+                InputStream in = file.open();
+                try {
+                    content = IOUtils.toByteArray(in, length);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // The file might have changed since it has been checked, it is streamed then
+                return null;
+            }
+            cache.put(key, content);
+        }
+        return content;
+    }
+
+    /**
+     * Gets the file on the local file system, which is read to serve the given file.
+     */
+    @CheckForNull
+    private static File toLocalFile(VirtualFile file) {
+        URI uri = file.toURI();
+        if (!"file".equals(uri.getScheme())) {
+            return null;
+        }
+        // Files of manifest-based reports are not stored at their location
+        File f = new File(uri);
+        return f.isFile() ? f : null;
+    }
+
+    /**
+     * Sends a part of a file.
+     * Files on the local file system are transferred by their channel, without copying them through buffers on the heap.
+     */
+    private static void copy(VirtualFile file, @CheckForNull File localFile, long start, long count, OutputStream out)
+            throws IOException {
+        if (localFile != null) {
+            FileInputStream in = new FileInputStream(localFile);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = start;
+                long end = start + count;
+                while (position < end) {
+                    long transferred = channel.transferTo(position, end - position, target);
+                    if (transferred <= 0) {
+                        throw new EOFException("Unexpected end of " + localFile);
+                    }
+                    position += transferred;
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            InputStream in = file.open();
+            try {
+                if (IOUtils.copyLarge(in, out, start, count) < count) {
+                    throw new EOFException("Unexpected end of " + file);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Checks the {@code If-Range} precondition.
+     */
+    private static boolean isRangeApplicable(StaplerRequest req, String etag, long lastModified) {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return lastModified > 0 && lastModified / 1000 == req.getDateHeader("If-Range") / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses the ranges of a {@code Range} header.
+     * Overlapping and adjacent ranges are coalesced, so that no part of the file is sent twice.
+     * @return Satisfiable ranges as inclusive offsets in ascending order, an empty list if none is satisfiable,
+     *         or {@code null} if the header is invalid or not supported, the whole file is sent then
+     */
+    @CheckForNull
+    static List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // Suffix range, the last bytes of the file
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        long last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < start) {
+                            return null;
+                        }
+                        end = Math.min(length - 1, last);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < length) {
+                ranges.add(new long[] {start, end});
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<long[]> coalesce(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] r1, long[] r2) {
+                return r1[0] < r2[0] ? -1 : r1[0] == r2[0] ? 0 : 1;
+            }
+        });
+        List<long[]> coalesced = new ArrayList<long[]>(ranges.size());
+        long[] last = null;
+        for (long[] r : ranges) {
+            if (last != null && r[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                last = r;
+                coalesced.add(r);
+            }
+        }
+        return coalesced;
+    }
+
+    /**
+     * Gets the precompressed variant of a file of a report stored as a directory.
+     */
+    @CheckForNull
+    private static File getPrecompressedVariant(VirtualFile root, VirtualFile file, List<String> path) {
+        URI rootUri = root.toURI();
+        URI fileUri = file.toURI();
+        if (!"file".equals(rootUri.getScheme()) || !"file".equals(fileUri.getScheme())) {
+            return null;
+        }
+        StringBuilder relative = new StringBuilder();
+        for (String name : path) {
+            if (relative.length() > 0) {
+                relative.append('/');
+            }
+            relative.append(name);
+        }
+        return ReportPrecompression.getVariant(new File(rootUri), new File(fileUri), relative.toString());
+    }
+
+    private static boolean acceptsGzip(StaplerRequest req) {
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.trim().split(";");
+            String name = params[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim().replace(" ", "");
+                    if (param.matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits the path of a file.
+     * @return {@code null} if the path does not denote a file, or if it needs a special handling
+     */
+    @CheckForNull
+    private static List<String> parsePath(String restOfPath) {
+        if (restOfPath == null || restOfPath.length() == 0 || restOfPath.endsWith("/")) {
+            return null;
+        }
+        List<String> path = new ArrayList<String>();
+        StringTokenizer tokens = new StringTokenizer(restOfPath.replace('\\', '/'), "/");
+        while (tokens.hasMoreTokens()) {
+            String name = tokens.nextToken();
+            // Patterns, archives and plain views of the report, or attempts to leave the report directory
+            if (name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.equals(".") || name.equals("..")) {
+                return null;
+            }
+            path.add(name);
+        }
+        return path.isEmpty() ? null : path;
+    }
+
+    private static boolean isNotModified(StaplerRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified > 0) {
+            long ifModifiedSince;
+            try {
+                ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            // HTTP dates have a precision of one second
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,27 @@
+package htmlpublisher;
+
+/**
+ * Defines what happens when a report exceeds the maximum size or number of files allowed for it.
+ *
+ * @since TODO
+ */
+public enum ReportLimitAction {
+    /**
+     * The publication fails before any file is transferred.
+     */
+    FAIL("Fail the publication"),
+    /**
+     * The files within the limits are published, in the order of their paths, and a warning is logged.
+     */
+    TRUNCATE("Publish the files within the limits");
+
+    private final String displayName;
+
+    ReportLimitAction(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,468 @@
+package htmlpublisher;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Lists the files of an archived report with their size, modification time and content hash.
+ * The manifest is stored next to the report directory, as {@code <reportDir>.manifest}.
+ * Manifests returned by {@link #load(File)} are shared and must not be modified.
+ *
+ * @since TODO
+ */
+final class ReportManifest implements Serializable {
+
+    private static final String HEADER = "# htmlpublisher manifest v1";
+
+    private static final String STORAGE_PREFIX = "# storage=";
+
+    private static final String BASE_PREFIX = "# base=";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Length of the hex-encoded digests.
+     */
+    private static final int DIGEST_LENGTH = 64;
+
+    /**
+     * Number of parsed manifests kept in memory, so that serving a report does not parse
+     * the manifest again for each requested file.
+     */
+    private static final int CACHE_SIZE = Integer.getInteger(ReportManifest.class.getName() + ".cacheSize", 32);
+
+    private static final Map<File, ReportManifest> CACHE = new LinkedHashMap<File, ReportManifest>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, ReportManifest> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private ReportStorage storage;
+
+    /**
+     * Number of the build storing the unchanged files of a {@link ReportStorage#DELTA} report, 0 if all files are stored in place.
+     */
+    private int base;
+
+    private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * Timestamp and length of the file the manifest has been loaded from, used to validate the cache.
+     */
+    private transient long fileTimestamp;
+    private transient long fileLength;
+
+    ReportManifest(@Nonnull ReportStorage storage) {
+        this.storage = storage;
+    }
+
+    @Nonnull
+    ReportStorage getStorage() {
+        return storage;
+    }
+
+    void setStorage(@Nonnull ReportStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Gets the number of the build, whose report stores the files, which are not stored in the report directory.
+     * @return 0 if all files are stored in the report directory
+     */
+    int getBase() {
+        return base;
+    }
+
+    void setBase(int base) {
+        this.base = base;
+    }
+
+    void put(@Nonnull Entry entry) {
+        entries.put(entry.getPath(), entry);
+    }
+
+    /**
+     * Adds a file written on the master to the manifest.
+     * @param reportDir Report directory
+     * @param path Path of the file in the report, with '/' as a separator
+     */
+    void putFile(@Nonnull File reportDir, @Nonnull String path) throws IOException {
+        File f = new File(reportDir, path);
+        put(new Entry(path, f.length(), f.lastModified(), digest(f)));
+    }
+
+    @CheckForNull
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    @Nonnull
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Gets the entries located under the given directory, at any depth.
+     * @param dir Relative path of the directory, the empty string for the report root
+     */
+    @Nonnull
+    SortedMap<String, Entry> getEntriesUnder(String dir) {
+        if (dir.length() == 0) {
+            return entries;
+        }
+        String prefix = dir + '/';
+        return entries.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    boolean isDirectory(String path) {
+        if (path.length() == 0) {
+            return true;
+        }
+        String prefix = path + '/';
+        String next = entries.ceilingKey(prefix);
+        return next != null && next.startsWith(prefix);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.getSize();
+        }
+        return total;
+    }
+
+    void save(@Nonnull File file) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(file, "UTF-8");
+        try {
+            w.write(HEADER + '\n');
+            w.write(STORAGE_PREFIX + storage.name() + '\n');
+            if (base > 0) {
+                w.write(BASE_PREFIX + base + '\n');
+            }
+            for (Entry entry : entries.values()) {
+                w.write(entry.getDigest() + '\t' + entry.getSize() + '\t' + entry.getLastModified() + '\t' + entry.getPath() + '\n');
+            }
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    /**
+     * Gets the file, where the manifest of the given report directory is stored.
+     */
+    @Nonnull
+    static File getFile(@Nonnull File reportDir) {
+        return new File(reportDir.getParentFile(), reportDir.getName() + ".manifest");
+    }
+
+    /**
+     * Loads the manifest from the file, or reuses the copy loaded before if the file has not changed.
+     */
+    @Nonnull
+    static ReportManifest load(@Nonnull File file) throws IOException {
+        final long timestamp = file.lastModified();
+        final long length = file.length();
+        synchronized (CACHE) {
+            ReportManifest cached = CACHE.get(file);
+            if (cached != null && cached.fileTimestamp == timestamp && cached.fileLength == length) {
+                return cached;
+            }
+        }
+
+        ReportManifest manifest = read(file);
+        manifest.fileTimestamp = timestamp;
+        manifest.fileLength = length;
+        synchronized (CACHE) {
+            CACHE.put(file, manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads the manifest from the file, bypassing the cache.
+     */
+    @Nonnull
+    static ReportManifest read(@Nonnull File file) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!HEADER.equals(r.readLine())) {
+                throw new IOException("Unsupported report manifest format in " + file);
+            }
+            ReportManifest manifest = new ReportManifest(ReportStorage.DIRECTORY);
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith(STORAGE_PREFIX)) {
+                    manifest.setStorage(ReportStorage.valueOf(line.substring(STORAGE_PREFIX.length())));
+                } else if (line.startsWith(BASE_PREFIX)) {
+                    try {
+                        manifest.setBase(Integer.parseInt(line.substring(BASE_PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed base in report manifest " + file + ": " + line, e);
+                    }
+                } else if (line.length() > 0 && !line.startsWith("#")) {
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length != 4) {
+                        throw new IOException("Malformed line in report manifest " + file + ": " + line);
+                    }
+                    try {
+                        manifest.put(new Entry(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed line in report manifest " + file + ": " + line, e);
+                    }
+                }
+            }
+            manifest.check(file.getPath());
+            return manifest;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown storage in report manifest " + file, e);
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Checks the entries of the manifest, before they are used to locate files on the master.
+     * Paths must be relative to the report directory, and digests valid.
+     * Manifests computed on a node are not trusted, nor are the ones read from a file.
+     * @param source Origin of the manifest, for the error message
+     * @throws IOException If an entry is invalid
+     */
+    void check(@Nonnull String source) throws IOException {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (!e.getKey().equals(entry.getPath())) {
+                throw new IOException("Inconsistent entry " + e.getKey() + " in the report manifest of " + source);
+            }
+            if (!isPath(entry.getPath())) {
+                throw new IOException("Invalid path " + entry.getPath() + " in the report manifest of " + source);
+            }
+            if (!isDigest(entry.getDigest())) {
+                throw new IOException("Invalid digest " + entry.getDigest() + " of " + entry.getPath()
+                        + " in the report manifest of " + source);
+            }
+        }
+    }
+
+    /**
+     * Checks if the given string is a hex-encoded digest, as computed by {@link #digest(File)}.
+     */
+    static boolean isDigest(@CheckForNull String digest) {
+        if (digest == null || digest.length() != DIGEST_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < digest.length(); i++) {
+            char c = digest.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the given string is a relative path, in the form used by the entries.
+     * Absolute paths, drive letters, {@code ..} and {@code .} segments, empty segments and backslashes are rejected.
+     */
+    static boolean isPath(@CheckForNull String path) {
+        if (path == null || path.length() == 0 || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0
+                || (path.length() > 1 && Character.isLetter(path.charAt(0)) && path.charAt(1) == ':')) {
+            return false;
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.length() == 0 || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolves the path of an entry in a report directory.
+     * @throws IOException If the path is invalid, or the file is not in the directory, for instance through a link
+     */
+    @Nonnull
+    static File resolve(@Nonnull File dir, @Nonnull String path) throws IOException {
+        if (!isPath(path)) {
+            throw new IOException("Invalid path " + path + " in " + dir);
+        }
+        File f = new File(dir, path);
+        String root = dir.getCanonicalPath();
+        if (!root.endsWith(File.separator)) {
+            root += File.separator;
+        }
+        if (!f.getCanonicalPath().startsWith(root)) {
+            throw new IOException(path + " is not in " + dir);
+        }
+        return f;
+    }
+
+    /**
+     * Computes the manifest of a report directory on its node, and checks it before it is used.
+     */
+    @Nonnull
+    static ReportManifest scan(@Nonnull FilePath reportDir, @Nonnull Scan scan) throws IOException, InterruptedException {
+        ReportManifest manifest = reportDir.act(scan);
+        manifest.check(reportDir.getRemote());
+        return manifest;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Computes the hex-encoded content hash used in manifests.
+     */
+    @Nonnull
+    static String digest(@Nonnull File file) throws IOException {
+        MessageDigest md = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                md.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    /**
+     * A file of the report.
+     */
+    static final class Entry implements Serializable {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+
+        Entry(@Nonnull String path, long size, long lastModified, @Nonnull String digest) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        /**
+         * Path relative to the report root, with '/' as a separator.
+         */
+        @Nonnull
+        String getPath() {
+            return path;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        @Nonnull
+        String getDigest() {
+            return digest;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Computes the manifest of a report directory on the node, where it has been generated.
+     */
+    static final class Scan extends MasterToSlaveFileCallable<ReportManifest> {
+        private final ReportStorage storage;
+        private final ReportManifest previous;
+        private final ReportFileFilter filter;
+
+        Scan(@Nonnull ReportStorage storage, @Nonnull ReportFileFilter filter) {
+            this(storage, null, filter);
+        }
+
+        /**
+         * @param storage Storage of the new manifest
+         * @param previous Manifest of a previous publication. Files with the same size and modification time
+         *                 are assumed to be unchanged, and are not hashed again.
+         * @param filter Selects the files of the report
+         */
+        Scan(@Nonnull ReportStorage storage, @CheckForNull ReportManifest previous, @Nonnull ReportFileFilter filter) {
+            this.storage = storage;
+            this.previous = previous;
+            this.filter = filter;
+        }
+
+        @Override
+        public ReportManifest invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            return compute(dir, storage, previous, filter);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Computes the manifest of a local directory.
+     * @param dir Report directory
+     * @param storage Storage of the new manifest
+     * @param previous Manifest of a previous publication, see {@link Scan}
+     * @param filter Selects the files of the report
+     */
+    @Nonnull
+    static ReportManifest compute(@Nonnull File dir, @Nonnull ReportStorage storage, @CheckForNull ReportManifest previous,
+            @Nonnull ReportFileFilter filter) throws IOException, InterruptedException {
+        ReportManifest manifest = new ReportManifest(storage);
+        if (!dir.isDirectory()) {
+            return manifest;
+        }
+        for (String name : filter.scan(dir)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            File f = new File(dir, name);
+            String path = name.replace(File.separatorChar, '/');
+            long size = f.length();
+            long lastModified = f.lastModified();
+            Entry known = previous != null ? previous.get(path) : null;
+            if (known != null && known.getSize() == size && known.getLastModified() == lastModified) {
+                manifest.put(known);
+            } else {
+                manifest.put(new Entry(path, size, lastModified, digest(f)));
+            }
+        }
+        return manifest;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
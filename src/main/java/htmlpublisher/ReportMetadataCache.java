@@ -0,0 +1,148 @@
+package htmlpublisher;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Caches the file system metadata read when pages of jobs and builds are rendered,
+ * such as the existence of report directories and the current version of project-level reports.
+ * Entries are invalidated by publications, by the removal of reports, and when builds or jobs are deleted.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class ReportMetadataCache {
+
+    /**
+     * Maximum number of cached entries.
+     */
+    private static final int MAX_ENTRIES = Integer.getInteger(ReportMetadataCache.class.getName() + ".maxEntries", 10000);
+
+    private static final Object NULL = new Object();
+
+    private static final Map<File, Object> ENTRIES = new LinkedHashMap<File, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Object> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Incremented by each invalidation, so that values loaded concurrently are not cached when outdated.
+     */
+    private static long generation;
+
+    private static final Loader<Boolean> EXISTS = new Loader<Boolean>() {
+        public Boolean load(File file) {
+            return file.exists();
+        }
+    };
+
+    private ReportMetadataCache() {
+    }
+
+    /**
+     * Loads the metadata of a file on cache misses.
+     */
+    interface Loader<T> {
+        @CheckForNull
+        T load(@Nonnull File file);
+    }
+
+    /**
+     * Checks if the file exists.
+     */
+    static boolean exists(@Nonnull File file) {
+        return get(file, EXISTS);
+    }
+
+    /**
+     * Gets the cached metadata of the file, or loads it.
+     * A single kind of metadata can be cached for a given file.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T get(@Nonnull File file, @Nonnull Loader<T> loader) {
+        long loadedGeneration;
+        synchronized (ENTRIES) {
+            Object value = ENTRIES.get(file);
+            if (value != null) {
+                return value == NULL ? null : (T) value;
+            }
+            loadedGeneration = generation;
+        }
+        T value = loader.load(file);
+        synchronized (ENTRIES) {
+            if (loadedGeneration == generation) {
+                ENTRIES.put(file, value != null ? value : NULL);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Invalidates the metadata of the file, after it has been created, modified or deleted.
+     */
+    static void invalidate(@Nonnull File file) {
+        synchronized (ENTRIES) {
+            generation++;
+            ENTRIES.remove(file);
+        }
+    }
+
+    /**
+     * Invalidates the metadata of the directory and of all the files it contains.
+     */
+    static void invalidateAll(@Nonnull File dir) {
+        String prefix = dir.getPath() + File.separator;
+        synchronized (ENTRIES) {
+            generation++;
+            for (Iterator<File> it = ENTRIES.keySet().iterator(); it.hasNext();) {
+                File file = it.next();
+                if (file.equals(dir) || file.getPath().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the reports of deleted builds.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            invalidateAll(run.getRootDir());
+        }
+    }
+
+    /**
+     * Forgets the reports of deleted and moved jobs.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            invalidateAll(item.getRootDir());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            // The old location is unknown here, entries of the new location are dropped in case it has been used before
+            invalidateAll(item.getRootDir());
+        }
+    }
+}
@@ -0,0 +1,696 @@
+package htmlpublisher;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minification of the text files of a report on the node, before they are transferred.
+ * The selected files are written to a temporary directory: JavaScript, CSS, HTML and JSON files minified,
+ * source maps left out, and other files copied as they are. The temporary directory is published instead of the report directory.
+ * <p>
+ * Minification is conservative: names and tokens are left untouched, only whitespace and comments are removed,
+ * including the references to source maps. Strings, template literals, regular expressions and the text of HTML
+ * documents are kept as they are. Files, which cannot be tokenized unambiguously, are copied as they are.
+ *
+ * @since TODO
+ */
+final class ReportMinification {
+
+    /**
+     * Directory of the report, where the original files are published if they are kept.
+     */
+    static final String ORIGINALS_DIR = "htmlpublisher-originals";
+
+    /**
+     * Files bigger than this size in bytes are copied as they are, so that the node does not run out of memory.
+     */
+    private static final long MAX_SIZE = Long.getLong(ReportMinification.class.getName() + ".maxSize", 32 * 1024 * 1024);
+
+    /**
+     * Text is processed as ISO-8859-1, so that bytes of any ASCII-compatible encoding are kept as they are.
+     */
+    private static final String CHARSET = "ISO-8859-1";
+
+    private ReportMinification() {
+    }
+
+    /**
+     * Minifies the content of a file, depending on its extension.
+     * @param name Name of the file
+     * @return Minified content, {@code null} if the file is not minified
+     */
+    @CheckForNull
+    static byte[] minify(@Nonnull String name, @Nonnull byte[] content) throws IOException {
+        String lower = name.toLowerCase(Locale.ENGLISH);
+        if (lower.endsWith(".min.js") || lower.endsWith(".min.css") || isUtf16(content)) {
+            return null;
+        }
+        String text = new String(content, CHARSET);
+        String minified;
+        if (lower.endsWith(".js") || lower.endsWith(".mjs")) {
+            minified = minifyJs(text);
+        } else if (lower.endsWith(".css")) {
+            minified = minifyCss(text);
+        } else if (lower.endsWith(".html") || lower.endsWith(".htm")) {
+            minified = minifyHtml(text);
+        } else if (lower.endsWith(".json")) {
+            minified = minifyJson(text);
+        } else {
+            return null;
+        }
+        return minified != null ? minified.getBytes(CHARSET) : null;
+    }
+
+    private static boolean isUtf16(byte[] content) {
+        return content.length >= 2 && (content[0] == (byte) 0xFE && content[1] == (byte) 0xFF
+                || content[0] == (byte) 0xFF && content[1] == (byte) 0xFE);
+    }
+
+    /**
+     * Removes comments, except the ones starting with {@code /*!}, and collapses whitespace.
+     * Line breaks are kept, so that automatic semicolon insertion is not affected.
+     * @return {@code null} if a string is not terminated, if a slash might start either a division or a regular expression,
+     *         or if the script might contain HTML-like comments
+     */
+    @CheckForNull
+    static String minifyJs(String text) {
+        if (text.indexOf("<!--") >= 0 || text.indexOf("-->") >= 0) {
+            return null;
+        }
+        int n = text.length();
+        StringBuilder b = new StringBuilder(n);
+        // Brace depths, at which the template literals continue after their embedded expressions
+        Deque<Integer> templates = new ArrayDeque<Integer>();
+        int depth = 0;
+        // Kinds of the open parentheses, and of the last closed one
+        Deque<Integer> parens = new ArrayDeque<Integer>();
+        int closedParen = UNKNOWN;
+        boolean space = false;
+        boolean lineBreak = false;
+        int i = 0;
+        if (text.startsWith("#!")) {
+            // Hashbang of scripts run by Node.js
+            i = endOfLine(text, 0);
+            b.append(text, 0, i);
+        }
+        while (i < n) {
+            char c = text.charAt(i);
+            char next = i + 1 < n ? text.charAt(i + 1) : 0;
+            if (isSpace(c)) {
+                space = true;
+                lineBreak |= c == '\n' || c == '\r';
+                i++;
+                continue;
+            }
+            if (c == '/' && next == '/') {
+                i = endOfLine(text, i);
+                space = true;
+                continue;
+            }
+            if (c == '/' && next == '*' && (i + 2 >= n || text.charAt(i + 2) != '!')) {
+                int end = text.indexOf("*/", i + 2);
+                if (end < 0) {
+                    return null;
+                }
+                space = true;
+                // A comment containing a line break counts as a line break
+                lineBreak |= endOfLine(text, i) < end;
+                i = end + 2;
+                continue;
+            }
+
+            if (lineBreak && b.length() > 0) {
+                b.append('\n');
+            } else if (space && b.length() > 0) {
+                b.append(' ');
+            }
+            space = false;
+            lineBreak = false;
+            int end;
+            if (c == '/' && next == '*') {
+                end = text.indexOf("*/", i + 2);
+                if (end < 0) {
+                    return null;
+                }
+                end += 2;
+            } else if (c == '\'' || c == '"') {
+                end = endOfString(text, i);
+            } else if (c == '`') {
+                end = endOfTemplate(text, i + 1);
+                if (end > 0 && text.charAt(end - 1) == '{') {
+                    templates.push(depth);
+                }
+            } else if (c == '}' && !templates.isEmpty() && templates.peek() == depth) {
+                templates.pop();
+                end = endOfTemplate(text, i + 1);
+                if (end > 0 && text.charAt(end - 1) == '{') {
+                    templates.push(depth);
+                }
+            } else if (c == '/') {
+                Boolean regExp = isRegExp(text, i, b, closedParen);
+                if (regExp == null) {
+                    return null;
+                }
+                end = regExp ? endOfRegExp(text, i) : i + 1;
+            } else {
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth--;
+                } else if (c == '(') {
+                    parens.push(getParenKind(b));
+                } else if (c == ')') {
+                    closedParen = parens.isEmpty() ? UNKNOWN : parens.pop();
+                }
+                end = i + 1;
+            }
+            if (end < 0) {
+                return null;
+            }
+            b.append(text, i, end);
+            i = end;
+        }
+        return templates.isEmpty() ? b.toString() : null;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    private static int endOfLine(String text, int from) {
+        int i = from;
+        while (i < text.length() && text.charAt(i) != '\n' && text.charAt(i) != '\r') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the end of a string, which may contain escaped line breaks.
+     * @return -1 if the string is not terminated on its line
+     */
+    private static int endOfString(String text, int start) {
+        char quote = text.charAt(start);
+        int i = start + 1;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == quote) {
+                return i + 1;
+            } else if (c == '\\') {
+                // An escaped CR LF continues the string too
+                i += text.startsWith("\r\n", i + 1) ? 3 : 2;
+            } else if (c == '\n' || c == '\r') {
+                return -1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end of a part of a template literal.
+     * @return Position after the closing backquote, or after the start of an embedded expression, -1 if the template is not terminated
+     */
+    private static int endOfTemplate(String text, int from) {
+        int i = from;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '`') {
+                return i + 1;
+            } else if (c == '\\') {
+                i += 2;
+            } else if (c == '$' && i + 1 < text.length() && text.charAt(i + 1) == '{') {
+                return i + 2;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end of a regular expression literal.
+     * @return -1 if the literal is not terminated on its line
+     */
+    private static int endOfRegExp(String text, int start) {
+        boolean inClass = false;
+        int i = start + 1;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '\n' || c == '\r') {
+                return -1;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '/' && !inClass) {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static final List<String> KEYWORDS_BEFORE_EXPRESSION = Arrays.asList(
+            "return", "typeof", "instanceof", "in", "new", "delete", "void", "throw", "case", "do", "else");
+
+    private static final List<String> CONTEXTUAL_KEYWORDS = Arrays.asList("yield", "await", "of", "let", "async");
+
+    private static final List<String> STATEMENT_KEYWORDS = Arrays.asList("if", "while", "for", "with");
+
+    /**
+     * Kinds of parentheses: the ones of a statement are followed by a statement, which may start with a regular expression.
+     * The other ones enclose an expression, which may be followed by a division.
+     */
+    private static final int UNKNOWN = 0;
+    private static final int STATEMENT = 1;
+    private static final int EXPRESSION = 2;
+
+    private static int getParenKind(StringBuilder b) {
+        String word = getLastWord(b);
+        if (word == null || !CONTEXTUAL_KEYWORDS.contains(word)) {
+            return word != null && STATEMENT_KEYWORDS.contains(word) ? STATEMENT : EXPRESSION;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Gets the identifier, keyword or number at the end of the minified text.
+     * @return {@code null} if the text does not end with one, or if it is the name of a property
+     */
+    @CheckForNull
+    private static String getLastWord(StringBuilder b) {
+        int last = b.length() - 1;
+        while (last >= 0 && isSpace(b.charAt(last))) {
+            last--;
+        }
+        int word = last + 1;
+        while (word > 0 && isIdentifierPart(b.charAt(word - 1))) {
+            word--;
+        }
+        if (word > last || word > 0 && b.charAt(word - 1) == '.') {
+            return null;
+        }
+        return b.substring(word, last + 1);
+    }
+
+    /**
+     * Checks if a slash, which does not start a comment, starts a regular expression rather than a division.
+     * The token before it decides. When it is ambiguous, the slash can only be a division if no other slash follows on the line.
+     * @param b Minified text before the slash
+     * @param closedParen Kind of the last closed parenthesis
+     * @return {@code null} if the slash might be either
+     */
+    @CheckForNull
+    private static Boolean isRegExp(String text, int i, StringBuilder b, int closedParen) {
+        int last = b.length() - 1;
+        while (last >= 0 && isSpace(b.charAt(last))) {
+            last--;
+        }
+        if (last < 0) {
+            return true;
+        }
+        char prev = b.charAt(last);
+        if ("(,=:[!&|?{;~*%<>^".indexOf(prev) >= 0) {
+            return true;
+        }
+        if ((prev == '+' || prev == '-') && (last == 0 || b.charAt(last - 1) != prev)) {
+            return true;
+        }
+        if (prev == ']' || prev == '\'' || prev == '"' || prev == '`') {
+            return false;
+        }
+        if (prev == ')' && closedParen != UNKNOWN) {
+            return closedParen == STATEMENT;
+        }
+        if (isIdentifierPart(prev)) {
+            String word = getLastWord(b);
+            if (word == null) {
+                // Property names may be keywords
+                return false;
+            }
+            if (KEYWORDS_BEFORE_EXPRESSION.contains(word)) {
+                return true;
+            }
+            if (!CONTEXTUAL_KEYWORDS.contains(word)) {
+                return false;
+            }
+        }
+        // After a block, an increment or a contextual keyword
+        int eol = endOfLine(text, i);
+        return text.substring(i + 1, eol).indexOf('/') < 0 ? Boolean.FALSE : null;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c >= 0x80;
+    }
+
+    /**
+     * Removes comments, except the ones starting with {@code /*!}, and collapses whitespace.
+     * Whitespace is removed next to braces, semicolons, commas and child combinators.
+     * Strings and URLs are kept as they are.
+     */
+    static String minifyCss(String text) {
+        StringBuilder b = new StringBuilder(text.length());
+        int n = text.length();
+        boolean space = false;
+        int i = 0;
+        while (i < n) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\'') {
+                // Strings are kept as they are
+                int end = i + 1;
+                while (end < n && text.charAt(end) != c && text.charAt(end) != '\n') {
+                    end += text.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(n, end + 1);
+                space = appendSpace(b, space, c);
+                b.append(text, i, end);
+                i = end;
+            } else if (isUnquotedUrl(text, i)) {
+                // Unquoted URLs are kept as they are, they may contain the start of a comment
+                int end = text.indexOf(')', i);
+                end = end < 0 ? n : end + 1;
+                space = appendSpace(b, space, c);
+                b.append(text, i, end);
+                i = end;
+            } else if (c == '/' && i + 1 < n && text.charAt(i + 1) == '*') {
+                int end = text.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                if (i + 2 < n && text.charAt(i + 2) == '!') {
+                    space = appendSpace(b, space, c);
+                    b.append(text, i, end);
+                } else {
+                    space = true;
+                }
+                i = end;
+            } else if (isSpace(c)) {
+                space = true;
+                i++;
+            } else {
+                space = appendSpace(b, space, c);
+                b.append(c);
+                i++;
+            }
+        }
+        return b.toString();
+    }
+
+    private static boolean isUnquotedUrl(String text, int i) {
+        if (!text.regionMatches(true, i, "url(", 0, 4) || i > 0 && isIdentifierPart(text.charAt(i - 1))) {
+            return false;
+        }
+        int start = i + 4;
+        while (start < text.length() && isSpace(text.charAt(start))) {
+            start++;
+        }
+        return start < text.length() && text.charAt(start) != '"' && text.charAt(start) != '\'';
+    }
+
+    private static boolean appendSpace(StringBuilder b, boolean space, char next) {
+        if (space && b.length() > 0 && !isCssSeparator(b.charAt(b.length() - 1)) && !isCssSeparator(next)) {
+            b.append(' ');
+        }
+        return false;
+    }
+
+    private static boolean isCssSeparator(char c) {
+        return c == '{' || c == '}' || c == ';' || c == ',' || c == '>';
+    }
+
+    /**
+     * Elements, whose content is not parsed as markup.
+     */
+    private static final List<String> RAW_TEXT_ELEMENTS = Arrays.asList(
+            "script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes", "noscript", "plaintext");
+
+    /**
+     * Removes comments, except conditional comments, and collapses whitespace between the attributes of tags.
+     * Text is kept as it is, as any element might be styled to preserve its whitespace.
+     * The content of scripts, styles and other raw text elements is kept as it is.
+     */
+    static String minifyHtml(String text) {
+        String lower = text.toLowerCase(Locale.ENGLISH);
+        int n = text.length();
+        StringBuilder b = new StringBuilder(n);
+        int i = 0;
+        while (i < n) {
+            int lt = text.indexOf('<', i);
+            if (lt < 0) {
+                b.append(text, i, n);
+                break;
+            }
+            b.append(text, i, lt);
+            if (lower.startsWith("<!--", lt)) {
+                int end = lower.indexOf("-->", lt + 2);
+                if (end < 0) {
+                    b.append(text, lt, n);
+                    break;
+                }
+                end += 3;
+                if (lower.startsWith("<!--[", lt) || lower.startsWith("<!--<!", lt)) {
+                    // Conditional comments are interpreted by some browsers
+                    b.append(text, lt, end);
+                }
+                i = end;
+            } else if (lower.startsWith("<![cdata[", lt)) {
+                // Sections of SVG and MathML, which may contain the start of a comment
+                int end = text.indexOf("]]>", lt);
+                end = end < 0 ? n : end + 3;
+                b.append(text, lt, end);
+                i = end;
+            } else if (lt + 1 < n && lower.charAt(lt + 1) >= 'a' && lower.charAt(lt + 1) <= 'z') {
+                i = appendStartTag(text, lt, b);
+                String name = getTagName(lower, lt + 1);
+                if (RAW_TEXT_ELEMENTS.contains(name)) {
+                    int close = lower.indexOf("</" + name, i);
+                    int end = close < 0 ? n : close;
+                    b.append(text, i, end);
+                    i = end;
+                }
+            } else {
+                // End tags, declarations and text
+                b.append('<');
+                i = lt + 1;
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * Appends a start tag, collapsing the whitespace outside of the attribute values.
+     * @return Position after the tag
+     */
+    private static int appendStartTag(String text, int start, StringBuilder b) {
+        int n = text.length();
+        boolean space = false;
+        boolean afterEquals = false;
+        int i = start;
+        while (i < n) {
+            char c = text.charAt(i);
+            if (isSpace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (space) {
+                b.append(' ');
+                space = false;
+            }
+            if (afterEquals && (c == '"' || c == '\'')) {
+                int end = text.indexOf(c, i + 1);
+                end = end < 0 ? n : end + 1;
+                b.append(text, i, end);
+                i = end;
+            } else {
+                b.append(c);
+                i++;
+                if (c == '>') {
+                    break;
+                }
+            }
+            afterEquals = c == '=';
+        }
+        return i;
+    }
+
+    private static String getTagName(String lower, int start) {
+        int end = start;
+        while (end < lower.length() && !isSpace(lower.charAt(end)) && lower.charAt(end) != '/' && lower.charAt(end) != '>') {
+            end++;
+        }
+        return lower.substring(start, end);
+    }
+
+    /**
+     * Removes the whitespace outside of strings.
+     * @return {@code null} if the text does not look like a JSON object or array
+     */
+    @CheckForNull
+    static String minifyJson(String text) {
+        String trimmed = text.trim();
+        if (!trimmed.startsWith("{") && !trimmed.startsWith("[")) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder(trimmed.length());
+        boolean inString = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (inString) {
+                b.append(c);
+                if (c == '\\' && i + 1 < trimmed.length()) {
+                    b.append(trimmed.charAt(++i));
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+                b.append(c);
+            } else if (!isSpace(c)) {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * Volumes of a minification.
+     */
+    static final class Result implements Serializable {
+        private int files;
+        private int minified;
+        private int sourceMaps;
+        private long originalBytes;
+        private long publishedBytes;
+
+        int getFiles() {
+            return files;
+        }
+
+        /**
+         * Gets the number of bytes saved by the minification, and by leaving out source maps.
+         */
+        long getSavedBytes() {
+            return originalBytes - publishedBytes;
+        }
+
+        @Override
+        public String toString() {
+            long saved = getSavedBytes();
+            return "Minified " + minified + " of " + files + " files and left out " + sourceMaps + " source maps, "
+                    + saved + " bytes saved (" + (originalBytes > 0 ? saved * 100 / originalBytes : 0) + "%)";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Writes the minified report to a directory of the node.
+     */
+    static final class Minify extends MasterToSlaveFileCallable<Result> {
+        private final ReportFileFilter filter;
+        private final String targetDir;
+        private final boolean keepOriginals;
+
+        /**
+         * @param filter Selects the files of the report
+         * @param targetDir Directory of the node, where the minified report is written
+         * @param keepOriginals If true, the original files are written too, under {@link #ORIGINALS_DIR}
+         */
+        Minify(@Nonnull ReportFileFilter filter, @Nonnull String targetDir, boolean keepOriginals) {
+            this.filter = filter;
+            this.targetDir = targetDir;
+            this.keepOriginals = keepOriginals;
+        }
+
+        @Override
+        public Result invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            Result result = new Result();
+            if (!dir.isDirectory()) {
+                return result;
+            }
+            File target = new File(targetDir);
+            for (String name : filter.scan(dir)) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                File f = new File(dir, name);
+                result.files++;
+                result.originalBytes += f.length();
+                if (keepOriginals) {
+                    FileUtils.copyFile(f, new File(new File(target, ORIGINALS_DIR), name));
+                }
+                if (name.toLowerCase(Locale.ENGLISH).endsWith(".map")) {
+                    result.sourceMaps++;
+                    continue;
+                }
+
+                File copy = new File(target, name);
+                byte[] minified = null;
+                byte[] content = null;
+                if (f.length() <= MAX_SIZE) {
+                    content = read(f);
+                    minified = minify(f.getName(), content);
+                }
+                if (minified != null && minified.length < content.length) {
+                    write(minified, copy);
+                    // Keep the modification time, so that unchanged files are recognized by the next publications
+                    if (!copy.setLastModified(f.lastModified())) {
+                        throw new IOException("Cannot set the modification time of " + copy);
+                    }
+                    result.minified++;
+                    result.publishedBytes += minified.length;
+                } else {
+                    FileUtils.copyFile(f, copy);
+                    result.publishedBytes += f.length();
+                }
+            }
+            return result;
+        }
+
+        private static byte[] read(File f) throws IOException {
+            InputStream in = new FileInputStream(f);
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        private static void write(byte[] content, File f) throws IOException {
+            File parent = f.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            OutputStream out = new FileOutputStream(f);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
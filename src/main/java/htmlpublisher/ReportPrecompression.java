@@ -0,0 +1,136 @@
+package htmlpublisher;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.Project;
+
+/**
+ * Precompressed variants of the text files of a report, served to browsers accepting GZip.
+ * Variants are stored in a directory next to the report directory, so that they do not show up
+ * in listings and archives of the report: {@code <name>.gz/<path>.gz}.
+ *
+ * @since TODO
+ */
+final class ReportPrecompression {
+
+    /**
+     * Files smaller than this size in bytes are not compressed.
+     */
+    private static final long MIN_SIZE = Long.getLong(ReportPrecompression.class.getName() + ".minSize", 1024);
+
+    /**
+     * Variants, which do not save at least this ratio of the file size, are not kept.
+     */
+    private static final double MIN_SAVING = 0.1;
+
+    private static final Set<String> EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "html", "htm", "xhtml", "css", "js", "json", "xml", "svg", "txt", "csv", "log", "map"));
+
+    private ReportPrecompression() {
+    }
+
+    /**
+     * Gets the directory of the precompressed variants of the given report directory.
+     */
+    @Nonnull
+    static File getDir(@Nonnull File reportDir) {
+        return new File(reportDir.getParentFile(), reportDir.getName() + ".gz");
+    }
+
+    /**
+     * Gets the precompressed variant of a file, if it is up to date.
+     * @param reportDir Report directory
+     * @param file File of the report
+     * @param path Path of the file in the report, with '/' as a separator
+     */
+    @CheckForNull
+    static File getVariant(@Nonnull File reportDir, @Nonnull File file, @Nonnull String path) {
+        File variant = new File(getDir(reportDir), path + ".gz");
+        return variant.isFile() && variant.lastModified() == file.lastModified() ? variant : null;
+    }
+
+    /**
+     * Writes the precompressed variants of the text files of the report, replacing the existing ones.
+     * @return Number of precompressed files
+     */
+    static int compress(@Nonnull File reportDir, @Nonnull TaskListener listener) throws IOException, InterruptedException {
+        File dir = getDir(reportDir);
+        Util.deleteRecursive(dir);
+        if (!reportDir.isDirectory()) {
+            return 0;
+        }
+
+        int count = 0;
+        long originalBytes = 0;
+        long compressedBytes = 0;
+        for (String name : Util.createFileSet(reportDir, "**/*").getDirectoryScanner(new Project()).getIncludedFiles()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            File f = new File(reportDir, name);
+            if (f.length() < MIN_SIZE || !EXTENSIONS.contains(getExtension(name))) {
+                continue;
+            }
+            File variant = new File(dir, name + ".gz");
+            if (!variant.getParentFile().isDirectory() && !variant.getParentFile().mkdirs()) {
+                throw new IOException("Cannot create " + variant.getParentFile());
+            }
+            gzip(f, variant);
+            if (variant.length() > f.length() * (1 - MIN_SAVING)) {
+                Util.deleteFile(variant);
+                continue;
+            }
+            // Ties the variant to the version of the file it has been created from
+            if (!variant.setLastModified(f.lastModified())) {
+                Util.deleteFile(variant);
+                continue;
+            }
+            count++;
+            originalBytes += f.length();
+            compressedBytes += variant.length();
+        }
+        listener.getLogger().println("[htmlpublisher] Precompressed " + count + " files from " + originalBytes
+                + " to " + compressedBytes + " bytes");
+        return count;
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static void gzip(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(target), 64 * 1024) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package htmlpublisher;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timings and volumes of the reports published by a build, for each phase of the publication.
+ * Exported through the remote API of the build, to find slow nodes and oversized reports.
+ *
+ * @since TODO
+ */
+@ExportedBean
+public class ReportPublishStats extends InvisibleAction {
+
+    /**
+     * Phases of a publication.
+     */
+    static final String RESOLVE = "resolve";
+    static final String MINIFY = "minify";
+    static final String TRANSFER = "transfer";
+    static final String PRECOMPRESS = "precompress";
+    static final String ATTACH = "attach";
+    static final String WRAPPER = "wrapper";
+    static final String COMMIT = "commit";
+
+    private final List<TargetStats> targets = new ArrayList<TargetStats>();
+
+    /**
+     * Gets the statistics of the build, adding them to the build if needed.
+     */
+    @Nonnull
+    static ReportPublishStats forBuild(@Nonnull Run<?, ?> build) {
+        synchronized (ReportPublishStats.class) {
+            ReportPublishStats stats = build.getAction(ReportPublishStats.class);
+            if (stats == null) {
+                stats = new ReportPublishStats();
+                build.addAction(stats);
+            }
+            return stats;
+        }
+    }
+
+    synchronized void add(@Nonnull TargetStats target) {
+        targets.add(target);
+    }
+
+    /**
+     * Gets the statistics of the published reports, in the order they have been published.
+     */
+    @Exported(inline = true)
+    public synchronized List<TargetStats> getTargets() {
+        return new ArrayList<TargetStats>(targets);
+    }
+
+    /**
+     * Statistics of the publication of a single report.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class TargetStats {
+        private final String name;
+        private final String node;
+        private final LinkedHashMap<String, Long> phases = new LinkedHashMap<String, Long>();
+        private int files;
+        private long bytes;
+        private long savedBytes;
+        private transient long mark = System.nanoTime();
+
+        /**
+         * @param name Name of the report
+         * @param node Name of the node, where the report has been generated
+         */
+        TargetStats(@Nonnull String name, @Nonnull String node) {
+            this.name = name;
+            this.node = node;
+        }
+
+        /**
+         * Ends a phase, which started when the previous one ended.
+         */
+        void endPhase(@Nonnull String phase) {
+            long now = System.nanoTime();
+            Long previous = phases.get(phase);
+            long millis = TimeUnit.NANOSECONDS.toMillis(now - mark);
+            phases.put(phase, previous != null ? previous + millis : millis);
+            mark = now;
+        }
+
+        void setVolume(int files, long bytes) {
+            this.files = files;
+            this.bytes = bytes;
+        }
+
+        void setSavedBytes(long savedBytes) {
+            this.savedBytes = savedBytes;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public String getNode() {
+            return node;
+        }
+
+        @Exported
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * Gets the size of the published report in bytes.
+         */
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Gets the number of bytes saved by the minification of the report.
+         */
+        @Exported
+        public long getSavedBytes() {
+            return savedBytes;
+        }
+
+        /**
+         * Gets the duration of each phase, in the order they ran.
+         */
+        @Exported(inline = true)
+        public List<Phase> getPhases() {
+            List<Phase> list = new ArrayList<Phase>(phases.size());
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                list.add(new Phase(phase.getKey(), phase.getValue()));
+            }
+            return list;
+        }
+
+        /**
+         * Gets the total duration of the publication in milliseconds.
+         */
+        @Exported
+        public long getMillis() {
+            long millis = 0;
+            for (long phase : phases.values()) {
+                millis += phase;
+            }
+            return millis;
+        }
+
+        /**
+         * Gets the throughput of the transfer in KB/s.
+         */
+        @Exported
+        public long getTransferThroughput() {
+            Long millis = phases.get(TRANSFER);
+            return millis != null ? bytes * 1000 / 1024 / Math.max(1, millis) : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            b.append(name).append(" from ").append(node).append(": ").append(files).append(" files, ")
+                    .append(bytes).append(" bytes in ").append(getMillis()).append(" ms (");
+            boolean first = true;
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                if (!first) {
+                    b.append(", ");
+                }
+                b.append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+                first = false;
+            }
+            b.append("), transfer ").append(getTransferThroughput()).append(" KB/s");
+            if (savedBytes > 0) {
+                b.append(", ").append(savedBytes).append(" bytes saved by minification");
+            }
+            return b.toString();
+        }
+    }
+
+    /**
+     * Duration of a phase of a publication.
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static final class Phase {
+        private final String name;
+        private final long millis;
+
+        Phase(String name, long millis) {
+            this.name = name;
+            this.millis = millis;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+    }
+}
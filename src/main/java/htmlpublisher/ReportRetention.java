@@ -0,0 +1,261 @@
+package htmlpublisher;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Removes the reports kept for each build, which exceed the retention policy of their target.
+ * The build records are kept, only the reports and their links are removed.
+ * <p>
+ * Pruning is incremental: each run removes a bounded number of reports, pauses between removals,
+ * and skips the jobs, which are building, so that it does not compete with publications for I/O.
+ * Builds are walked from the most recent one, and only down to the oldest build, which kept its report
+ * after the previous run, so that the records of older builds are not loaded again each time.
+ *
+ * @since TODO
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class ReportRetention extends AsyncPeriodicWork {
+
+    /**
+     * Maximum number of reports removed by a single run.
+     */
+    private static final int MAX_REMOVALS = Integer.getInteger(ReportRetention.class.getName() + ".maxRemovals", 200);
+
+    /**
+     * Pause in milliseconds after the removal of each report.
+     */
+    private static final long PAUSE_MILLIS = Long.getLong(ReportRetention.class.getName() + ".pauseMillis", 100);
+
+    /**
+     * For each job and report, the number of the oldest build, which might still have the report.
+     * Older builds do not have it anymore and are not walked again. Jobs are not referenced by the values,
+     * and reloaded jobs are walked entirely once.
+     */
+    private static final Map<Job<?, ?>, Map<String, Integer>> OLDEST_REPORTS = new WeakHashMap<Job<?, ?>, Map<String, Integer>>();
+
+    public ReportRetention() {
+        super("HTML report retention");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return HOUR;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        int removed = 0;
+        for (Job<?, ?> job : jenkins.getAllItems(Job.class)) {
+            if (job.isBuilding()) {
+                // Do not compete with the publications, the job is pruned by a later run
+                continue;
+            }
+            for (HtmlPublisherTarget target : getTargets(job)) {
+                if (!target.getKeepAll() || !target.hasRetentionPolicy()) {
+                    continue;
+                }
+                removed += prune(job, target, MAX_REMOVALS - removed, listener);
+                if (removed >= MAX_REMOVALS) {
+                    listener.getLogger().println("Removed " + removed + " reports, the remaining ones are removed by the next run");
+                    return;
+                }
+            }
+        }
+        listener.getLogger().println("Removed " + removed + " reports");
+    }
+
+    /**
+     * Gets the configured targets of the job, or the targets of its last completed build for jobs like Pipelines.
+     */
+    private static List<HtmlPublisherTarget> getTargets(Job<?, ?> job) {
+        Map<String, HtmlPublisherTarget> targets = new LinkedHashMap<String, HtmlPublisherTarget>();
+        if (job instanceof AbstractProject) {
+            HtmlPublisher publisher = ((AbstractProject<?, ?>) job).getPublishersList().get(HtmlPublisher.class);
+            if (publisher != null) {
+                for (HtmlPublisherTarget target : publisher.getReportTargets()) {
+                    targets.put(target.getSanitizedName(), target);
+                }
+            }
+        } else {
+            Run<?, ?> last = job.getLastCompletedBuild();
+            if (last != null) {
+                for (HtmlPublisherTarget.HTMLBuildAction action : last.getActions(HtmlPublisherTarget.HTMLBuildAction.class)) {
+                    targets.put(action.getHTMLTarget().getSanitizedName(), action.getHTMLTarget());
+                }
+            }
+        }
+        return new ArrayList<HtmlPublisherTarget>(targets.values());
+    }
+
+    /**
+     * Removes the reports of the target exceeding its retention policy, from the oldest build.
+     * The most recent report is always kept.
+     * @return Number of removed reports
+     */
+    static int prune(Job<?, ?> job, HtmlPublisherTarget target, int maxRemovals, TaskListener listener)
+            throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long maxSize = target.getRetentionSizeMB() * 1024L * 1024L;
+        String name = target.getSanitizedName();
+        int oldestReport = getOldestReport(job, name);
+        // Builds started from now on are walked by the next run
+        int oldestRemaining = job.getNextBuildNumber();
+        int kept = 0;
+        long keptSize = 0;
+        List<Run<?, ?>> expired = new ArrayList<Run<?, ?>>();
+        for (Run<?, ?> run : job.getBuilds()) {
+            if (run.getNumber() < oldestReport) {
+                // Older reports have been removed by a previous run
+                break;
+            }
+            File dir = target.getBuildArchiveDir(run);
+            if (run.isBuilding()) {
+                oldestRemaining = run.getNumber();
+                continue;
+            }
+            if (!dir.exists()) {
+                continue;
+            }
+            boolean expire = kept > 0 && (
+                    target.getRetentionBuilds() > 0 && kept >= target.getRetentionBuilds()
+                    || target.getRetentionDays() > 0 && now - run.getTimeInMillis() > TimeUnit.DAYS.toMillis(target.getRetentionDays()));
+            if (!expire && maxSize > 0) {
+                long size = getSize(dir);
+                expire = kept > 0 && keptSize + size > maxSize;
+                if (!expire) {
+                    keptSize += size;
+                }
+            }
+            if (expire) {
+                expired.add(run);
+            } else {
+                kept++;
+                oldestRemaining = run.getNumber();
+            }
+        }
+
+        // Start from the oldest reports, they are the less likely to be viewed
+        int removed = 0;
+        for (int i = expired.size() - 1; i >= 0; i--) {
+            Run<?, ?> run = expired.get(i);
+            if (removed >= maxRemovals) {
+                // Left for the next run
+                oldestRemaining = Math.min(oldestRemaining, run.getNumber());
+                break;
+            }
+            try {
+                remove(run, target);
+                removed++;
+                listener.getLogger().println("Removed the report " + target.getReportName() + " of " + run.getFullDisplayName());
+            } catch (IOException e) {
+                oldestRemaining = Math.min(oldestRemaining, run.getNumber());
+                e.printStackTrace(listener.error("Failed to remove the report " + target.getReportName() + " of " + run.getFullDisplayName()));
+            }
+            Thread.sleep(PAUSE_MILLIS);
+        }
+        setOldestReport(job, name, oldestRemaining);
+        if (removed > 0 && target.getStorage() == ReportStorage.DEDUPLICATED) {
+            ReportBlobStore.scheduleSweep(job);
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the number of the oldest build of the job, which might still have the report.
+     * @return 0 if all the builds have to be walked
+     */
+    private static int getOldestReport(Job<?, ?> job, String name) {
+        synchronized (OLDEST_REPORTS) {
+            Map<String, Integer> reports = OLDEST_REPORTS.get(job);
+            Integer number = reports != null ? reports.get(name) : null;
+            return number != null ? number : 0;
+        }
+    }
+
+    private static void setOldestReport(Job<?, ?> job, String name, int number) {
+        synchronized (OLDEST_REPORTS) {
+            Map<String, Integer> reports = OLDEST_REPORTS.get(job);
+            if (reports == null) {
+                reports = new HashMap<String, Integer>();
+                OLDEST_REPORTS.put(job, reports);
+            }
+            reports.put(name, number);
+        }
+    }
+
+    /**
+     * Gets the size of a report, from its manifest if it has one.
+     * Reports stored as changes only count their changed files.
+     */
+    private static long getSize(File dir) {
+        File manifestFile = ReportManifest.getFile(dir);
+        if (manifestFile.isFile()) {
+            try {
+                ReportManifest manifest = ReportManifest.read(manifestFile);
+                if (manifest.getStorage() != ReportStorage.DELTA || manifest.getBase() == 0) {
+                    return manifest.getTotalSize();
+                }
+            } catch (IOException e) {
+                // Fall back to the files of the directory
+            }
+        }
+        return FileUtils.sizeOfDirectory(dir);
+    }
+
+    /**
+     * Removes the report of the build, whatever storage it has been published with, and its link.
+     */
+    static void remove(@Nonnull Run<?, ?> run, @Nonnull HtmlPublisherTarget target) throws IOException {
+        File dir = target.getBuildArchiveDir(run);
+        // Reports of the next builds might be stored as changes to this one
+        ReportDeltaStore.forJob(run.getParent()).release(run, target.getSanitizedName());
+        File archive = ReportArchive.getFile(dir);
+        ReportArchive.evict(archive);
+        try {
+            Util.deleteRecursive(dir);
+            Util.deleteRecursive(ReportManifest.getFile(dir));
+            Util.deleteRecursive(archive);
+            Util.deleteRecursive(ReportPrecompression.getDir(dir));
+        } finally {
+            ReportMetadataCache.invalidate(dir);
+        }
+        ReportUsage.forJob(run.getParent()).remove(target.getSanitizedName(), run);
+
+        boolean changed = false;
+        for (HtmlPublisherTarget.HTMLBuildAction action : run.getActions(HtmlPublisherTarget.HTMLBuildAction.class)) {
+            if (action.getHTMLTarget().getSanitizedName().equals(target.getSanitizedName())) {
+                changed |= run.getActions().remove(action);
+            }
+        }
+        if (changed) {
+            run.save();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package htmlpublisher;
+
+/**
+ * Defines how the archived copy of a report kept for each build is stored on the master.
+ * Project-level reports are always stored as a plain directory.
+ *
+ * @since TODO
+ */
+public enum ReportStorage {
+    /**
+     * Files are copied as they are into the report directory of the build.
+     */
+    DIRECTORY("Plain directory"),
+    /**
+     * Files are stored once per job in a content-addressed store, each build only keeps
+     * a manifest of the files it references.
+     */
+    DEDUPLICATED("Deduplicated between builds"),
+    /**
+     * Files are stored in a single zip archive next to the report directory, and served
+     * directly from the archive.
+     */
+    ARCHIVE("Single compressed archive"),
+    /**
+     * Files are copied into the report directory of the build every few builds. The builds in between
+     * only store the files, which have been added or changed since then, and serve the others from it.
+     */
+    DELTA("Changes since a periodic full copy");
+
+    private final String displayName;
+
+    ReportStorage(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,153 @@
+package htmlpublisher;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.os.PosixAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Synchronizes a project-level report with the report directory in the workspace.
+ * Only files, which have changed since the previous publication, are transferred from the node.
+ * Unchanged files are either kept in place, or hard linked from the previous version of the report.
+ * Files of a version are never written once the version has been published, so they can be shared.
+ *
+ * @since TODO
+ */
+final class ReportSync {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportSync.class.getName());
+
+    /**
+     * Whether hard links are known not to be supported, unchanged files are copied then.
+     */
+    private static volatile boolean linksUnsupported = Functions.isWindows();
+
+    private ReportSync() {
+    }
+
+    /**
+     * Synchronizes the report.
+     * @param reportDir Report directory in the workspace
+     * @param filter Selects the files of the report
+     * @param targetDir Report directory to update, the manifest is saved next to it
+     * @param baseDir Directory of the previous version of the report.
+     *                If it differs from the target directory, unchanged files are linked from there.
+     * @param listener Build listener
+     * @return Number of files in the report
+     */
+    static int sync(@Nonnull FilePath reportDir, @Nonnull ReportFileFilter filter, @Nonnull File targetDir,
+            @Nonnull File baseDir, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException {
+        File manifestFile = ReportManifest.getFile(targetDir);
+        if (!reportDir.exists()) {
+            Util.deleteRecursive(targetDir);
+            if (manifestFile.exists()) {
+                Util.deleteFile(manifestFile);
+            }
+            return 0;
+        }
+
+        final boolean inPlace = baseDir.equals(targetDir);
+        File baseManifestFile = ReportManifest.getFile(baseDir);
+        ReportManifest previous = null;
+        if (baseDir.isDirectory() && baseManifestFile.isFile()) {
+            try {
+                previous = ReportManifest.read(baseManifestFile);
+            } catch (IOException e) {
+                listener.getLogger().println("[htmlpublisher] Ignoring the manifest of the previous report: " + e.getMessage());
+            }
+        }
+        ReportManifest manifest = ReportManifest.scan(reportDir, new ReportManifest.Scan(ReportStorage.DIRECTORY, previous, filter));
+
+        int removed = 0;
+        if (previous == null || !inPlace) {
+            // Start from scratch, unchanged files of the previous version get linked below
+            Util.deleteRecursive(targetDir);
+        }
+        if (previous != null) {
+            // Remove stale files first, a file of the previous report might have been replaced by a directory
+            for (ReportManifest.Entry known : previous.getEntries()) {
+                if (manifest.get(known.getPath()) == null) {
+                    removed++;
+                    File f = ReportManifest.resolve(targetDir, known.getPath());
+                    if (inPlace && f.isFile()) {
+                        Util.deleteFile(f);
+                        deleteEmptyParents(f.getParentFile(), targetDir);
+                    }
+                }
+            }
+        }
+
+        List<String> changed = new ArrayList<String>();
+        long changedBytes = 0;
+        int linked = 0;
+        for (ReportManifest.Entry entry : manifest.getEntries()) {
+            ReportManifest.Entry known = previous != null ? previous.get(entry.getPath()) : null;
+            File f = ReportManifest.resolve(baseDir, entry.getPath());
+            if (known == null || !known.getDigest().equals(entry.getDigest()) || !f.isFile() || f.length() != entry.getSize()) {
+                changed.add(entry.getPath());
+                changedBytes += entry.getSize();
+            } else if (!inPlace && link(f, new File(targetDir, entry.getPath()))) {
+                linked++;
+            }
+        }
+        if (!changed.isEmpty()) {
+            ReportTransfer.get().copy(reportDir, new SelectedFiles(changed), new FilePath(targetDir), listener);
+        }
+
+        if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+            throw new IOException("Cannot create " + targetDir);
+        }
+        manifest.save(manifestFile);
+
+        listener.getLogger().println("[htmlpublisher] Transferred " + changed.size() + " changed files (" + changedBytes
+                + " bytes), removed " + removed + " stale files, kept " + (manifest.size() - changed.size()) + " unchanged files"
+                + (inPlace ? "" : " (" + linked + " linked, " + (manifest.size() - changed.size() - linked) + " copied)"));
+        return manifest.size();
+    }
+
+    /**
+     * Hard links a file of the previous version into the new one, or copies it if links are not supported.
+     * @return True if the file has been linked
+     */
+    private static boolean link(File source, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        if (!linksUnsupported) {
+            try {
+                if (PosixAPI.jnr().link(source.getPath(), target.getPath()) == 0) {
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                // Thrown by the POSIX layer when links are not implemented on this platform
+                LOGGER.log(Level.FINE, "Hard links are not supported, report files will be copied", e);
+                linksUnsupported = true;
+            }
+        }
+        FileUtils.copyFile(source, target);
+        return false;
+    }
+
+    private static void deleteEmptyParents(File dir, File root) {
+        while (dir != null && !dir.equals(root)) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package htmlpublisher;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Transfers report files from the node to the master with the configured compression,
+ * and logs the achieved throughput and compression ratio.
+ *
+ * @since TODO
+ */
+final class ReportTransfer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TransferCompression compression;
+    private final int compressionLevel;
+
+    ReportTransfer(@Nonnull TransferCompression compression, int compressionLevel) {
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Gets the transfer settings of the global configuration.
+     */
+    @Nonnull
+    static ReportTransfer get() {
+        HtmlPublisher.DescriptorImpl descriptor = HtmlPublisher.getGlobalConfig();
+        return descriptor != null
+                ? new ReportTransfer(descriptor.getTransferCompression(), descriptor.getCompressionLevel())
+                : new ReportTransfer(TransferCompression.DEFAULT, HtmlPublisher.DescriptorImpl.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Gets the level used to compress reports on the node, from 0 to 9.
+     */
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Copies the files selected by the scanner.
+     * @param reportDir Report directory in the workspace
+     * @param scanner Selects the files to copy
+     * @param targetDir Directory on the master
+     * @param listener Build listener
+     * @return Number of copied files
+     */
+    int copy(@Nonnull FilePath reportDir, @Nonnull DirScanner scanner, @Nonnull FilePath targetDir,
+            @Nonnull TaskListener listener) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (compression == TransferCompression.DEFAULT || !reportDir.isRemote()) {
+            int files = reportDir.copyRecursiveTo(scanner, targetDir, reportDir.getRemote());
+            listener.getLogger().println("[htmlpublisher] Copied " + files + " files in " + elapsedMillis(start) + " ms");
+            return files;
+        }
+
+        Pipe pipe = Pipe.createRemoteToLocal();
+        Future<Stats> future = reportDir.actAsync(new Send(scanner, pipe, compression == TransferCompression.GZIP, compressionLevel));
+        CountingInputStream in = new CountingInputStream(pipe.getIn());
+        try {
+            targetDir.untarFrom(in, compression == TransferCompression.GZIP ? FilePath.TarCompression.GZIP : FilePath.TarCompression.NONE);
+        } catch (IOException e) {
+            // The failure on the node is more meaningful than the broken stream
+            try {
+                future.get(3, TimeUnit.SECONDS);
+            } catch (ExecutionException x) {
+                throw new IOException("Failed to transfer " + reportDir, x.getCause());
+            } catch (TimeoutException x) {
+                // Report the original failure
+            }
+            throw e;
+        }
+
+        Stats stats;
+        try {
+            stats = future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to transfer " + reportDir, e.getCause());
+        }
+
+        long millis = elapsedMillis(start);
+        long transferred = in.getByteCount();
+        listener.getLogger().println(String.format("[htmlpublisher] Transferred %d files, %d bytes as %d bytes (%s, ratio %.1f) in %d ms (%d KB/s)",
+                stats.files, stats.bytes, transferred,
+                compression == TransferCompression.GZIP ? "gzip level " + compressionLevel : "uncompressed",
+                transferred > 0 ? (double) stats.bytes / transferred : 1.0,
+                millis, transferred * 1000 / 1024 / Math.max(1, millis)));
+        return stats.files;
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static final class Stats implements Serializable {
+        private final int files;
+        private final long bytes;
+
+        Stats(int files, long bytes) {
+            this.files = files;
+            this.bytes = bytes;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Writes the selected files as a tar stream on the node.
+     */
+    private static final class Send extends MasterToSlaveFileCallable<Stats> {
+        private final DirScanner scanner;
+        private final Pipe pipe;
+        private final boolean compress;
+        private final int level;
+
+        Send(DirScanner scanner, Pipe pipe, boolean compress, int level) {
+            this.scanner = scanner;
+            this.pipe = pipe;
+            this.compress = compress;
+            this.level = level;
+        }
+
+        @Override
+        public Stats invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            OutputStream out = pipe.getOut();
+            if (compress) {
+                out = new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            Archiver archiver = ArchiverFactory.TAR.create(counter);
+            try {
+                scanner.scan(dir, archiver);
+            } finally {
+                archiver.close();
+            }
+            return new Stats(archiver.countEntries(), counter.getByteCount());
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,422 @@
+package htmlpublisher;
+
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.XStream2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Index of the disk usage of the reports of a job, recorded when reports are published
+ * and updated when they are removed, so that it is known without walking the report directories.
+ * The index is stored in the root directory of the job.
+ * Loaded indexes are kept by the full name of their job, they do not reference the job itself.
+ * <p>
+ * Reports published before the index was introduced are not accounted until they are published again.
+ *
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+@ExportedBean
+public final class ReportUsage implements Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportUsage.class.getName());
+
+    private static final String FILE_NAME = "htmlpublisher-usage.xml";
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("reportUsage", ReportUsage.class);
+        XSTREAM.alias("report", Report.class);
+    }
+
+    /**
+     * Loaded indexes by full name of their job.
+     */
+    private static final Map<String, ReportUsage> INDEXES = new HashMap<String, ReportUsage>();
+
+    private transient String fullName;
+
+    private transient File rootDir;
+
+    /**
+     * Reports of the job, by target and build.
+     */
+    private final TreeMap<String, Report> reports = new TreeMap<String, Report>();
+
+    private ReportUsage(@Nonnull Job<?, ?> job) {
+        setJob(job);
+    }
+
+    private void setJob(Job<?, ?> job) {
+        this.fullName = job.getFullName();
+        this.rootDir = job.getRootDir();
+    }
+
+    /**
+     * Gets the index of the job, loading it on first access.
+     */
+    @Nonnull
+    static ReportUsage forJob(@Nonnull Job<?, ?> job) {
+        synchronized (INDEXES) {
+            ReportUsage usage = INDEXES.get(job.getFullName());
+            if (usage == null) {
+                usage = load(job);
+                INDEXES.put(job.getFullName(), usage);
+            }
+            return usage;
+        }
+    }
+
+    /**
+     * Gets the index of the job, if reports of the job have been recorded.
+     * @return {@code null} if the job has no index, none is created then
+     */
+    @CheckForNull
+    static ReportUsage forJobIfRecorded(@Nonnull Job<?, ?> job) {
+        synchronized (INDEXES) {
+            ReportUsage usage = INDEXES.get(job.getFullName());
+            if (usage != null || !getFile(job.getRootDir()).exists()) {
+                return usage;
+            }
+        }
+        return forJob(job);
+    }
+
+    private static ReportUsage load(Job<?, ?> job) {
+        XmlFile file = getFile(job.getRootDir());
+        if (file.exists()) {
+            try {
+                ReportUsage usage = (ReportUsage) file.read();
+                usage.setJob(job);
+                return usage;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the disk usage of the reports of " + job.getFullName(), e);
+            }
+        }
+        return new ReportUsage(job);
+    }
+
+    private static XmlFile getFile(File rootDir) {
+        return new XmlFile(XSTREAM, new File(rootDir, FILE_NAME));
+    }
+
+    /**
+     * Measures a published report, from its manifest if it has one.
+     * Stored bytes are counted: the archive of archived reports, the changed files of reports stored as changes,
+     * and the precompressed variants of files. Deduplicated reports count the size of all their files,
+     * as the stored files they share with other reports cannot be attributed to one of them.
+     */
+    @Nonnull
+    static Report measure(@Nonnull File reportDir) {
+        File manifestFile = ReportManifest.getFile(reportDir);
+        if (manifestFile.isFile()) {
+            try {
+                ReportManifest manifest = ReportManifest.read(manifestFile);
+                if (manifest.getStorage() == ReportStorage.DELTA && manifest.getBase() > 0) {
+                    // Only the changed files are stored in the report directory
+                    return measureDirectory(reportDir);
+                }
+                File archive = ReportArchive.getFile(reportDir);
+                long size = archive.isFile() ? archive.length() : manifest.getTotalSize();
+                return new Report(size + sizeOf(ReportPrecompression.getDir(reportDir)), manifest.size());
+            } catch (IOException e) {
+                // Fall back to the files of the directory
+            }
+        }
+        return measureDirectory(reportDir);
+    }
+
+    private static Report measureDirectory(File reportDir) {
+        if (!reportDir.isDirectory()) {
+            return new Report(0, 0);
+        }
+        long size = 0;
+        String[] files = Util.createFileSet(reportDir, "**/*").getDirectoryScanner(new Project()).getIncludedFiles();
+        for (String name : files) {
+            size += new File(reportDir, name).length();
+        }
+        return new Report(size + sizeOf(ReportPrecompression.getDir(reportDir)), files.length);
+    }
+
+    private static long sizeOf(File dir) {
+        return dir.isDirectory() ? FileUtils.sizeOfDirectory(dir) : 0;
+    }
+
+    /**
+     * Records the usage of a report.
+     * @param target Sanitized name of the target
+     * @param build Build of the report, {@code null} for project-level reports
+     */
+    synchronized void record(@Nonnull String target, @CheckForNull Run<?, ?> build, @Nonnull Report report) {
+        String key = getKey(target, getNumber(build));
+        if (report.files == 0) {
+            if (reports.remove(key) == null) {
+                return;
+            }
+        } else {
+            report.target = target;
+            report.build = getNumber(build);
+            reports.put(key, report);
+        }
+        trySave();
+    }
+
+    /**
+     * Removes the usage of a report, once it has been removed.
+     */
+    synchronized void remove(@Nonnull String target, @CheckForNull Run<?, ?> build) {
+        if (reports.remove(getKey(target, getNumber(build))) != null) {
+            trySave();
+        }
+    }
+
+    /**
+     * Removes the usage of all the reports of a deleted build.
+     */
+    synchronized void removeBuild(int number) {
+        boolean changed = false;
+        for (Report report : new ArrayList<Report>(reports.values())) {
+            if (report.build == number) {
+                reports.remove(getKey(report.target, number));
+                changed = true;
+            }
+        }
+        if (changed) {
+            trySave();
+        }
+    }
+
+    private static int getNumber(@CheckForNull Run<?, ?> build) {
+        return build != null ? build.getNumber() : 0;
+    }
+
+    private static String getKey(String target, int build) {
+        return build != 0 ? target + "#" + build : target;
+    }
+
+    private void trySave() {
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the disk usage of the reports of " + fullName, e);
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        XmlFile file = getFile(rootDir);
+        file.write(this);
+        SaveableListener.fireOnChange(this, file);
+    }
+
+    /**
+     * Gets the job of the index.
+     * @return {@code null} if the job does not exist anymore
+     */
+    @CheckForNull
+    public Job<?, ?> getJob() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null ? jenkins.getItemByFullName(fullName, Job.class) : null;
+    }
+
+    /**
+     * Gets the full name of the job.
+     */
+    @Exported
+    public String getName() {
+        return fullName;
+    }
+
+    @Exported
+    public String getUrl() {
+        Job<?, ?> job = getJob();
+        return job != null ? job.getUrl() : null;
+    }
+
+    /**
+     * Gets the number of reports of the job.
+     */
+    @Exported
+    public synchronized int getReports() {
+        return reports.size();
+    }
+
+    /**
+     * Gets the total number of files of the reports of the job.
+     */
+    @Exported
+    public synchronized long getFiles() {
+        long files = 0;
+        for (Report report : reports.values()) {
+            files += report.files;
+        }
+        return files;
+    }
+
+    /**
+     * Gets the total size in bytes of the reports of the job.
+     */
+    @Exported
+    public synchronized long getSize() {
+        long size = 0;
+        for (Report report : reports.values()) {
+            size += report.size;
+        }
+        return size;
+    }
+
+    /**
+     * Gets the usage of each target of the job, the biggest first.
+     */
+    @Exported
+    public synchronized List<TargetUsage> getTargets() {
+        Map<String, TargetUsage> targets = new TreeMap<String, TargetUsage>();
+        for (Report report : reports.values()) {
+            TargetUsage target = targets.get(report.target);
+            if (target == null) {
+                target = new TargetUsage(report.target);
+                targets.put(report.target, target);
+            }
+            target.reports++;
+            target.files += report.files;
+            target.size += report.size;
+        }
+        List<TargetUsage> result = new ArrayList<TargetUsage>(targets.values());
+        Collections.sort(result, new Comparator<TargetUsage>() {
+            public int compare(TargetUsage o1, TargetUsage o2) {
+                return o1.size < o2.size ? 1 : o1.size > o2.size ? -1 : 0;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Size and number of files of a published report.
+     */
+    static final class Report {
+        private String target;
+        /**
+         * Number of the build, 0 for project-level reports.
+         */
+        private int build;
+        private final long size;
+        private final int files;
+
+        Report(long size, int files) {
+            this.size = size;
+            this.files = files;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        int getFiles() {
+            return files;
+        }
+    }
+
+    /**
+     * Totals of the reports of a target.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class TargetUsage {
+        private final String name;
+        private int reports;
+        private long files;
+        private long size;
+
+        TargetUsage(String name) {
+            this.name = name;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public int getReports() {
+            return reports;
+        }
+
+        @Exported
+        public long getFiles() {
+            return files;
+        }
+
+        @Exported
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Removes the reports of deleted builds from the index.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            ReportUsage usage = forJobIfRecorded(run.getParent());
+            if (usage != null) {
+                usage.removeBuild(run.getNumber());
+            }
+        }
+    }
+
+    /**
+     * Forgets the indexes of deleted and moved jobs, the index of a moved job is loaded again from its new location.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            forget(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            forget(oldFullName);
+        }
+
+        private static void forget(String fullName) {
+            synchronized (INDEXES) {
+                INDEXES.remove(fullName);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package htmlpublisher;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Job;
+import hudson.model.ManagementLink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Displays the disk usage of the reports of all the jobs, from their {@link ReportUsage} index.
+ * The same data is available through the remote API, jobs are sorted by size, the biggest first.
+ *
+ * @since TODO
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+@ExportedBean
+public final class ReportUsageLink extends ManagementLink implements StaplerProxy {
+
+    @Override
+    public String getIconFileName() {
+        return "folder.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "htmlReportsUsage";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "HTML Reports Disk Usage";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Disk space used by the published HTML reports of each job.";
+    }
+
+    public Object getTarget() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return this;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * Gets the usage of the jobs having reports, the biggest first.
+     * Only the jobs having an index are listed, no index is created for the other ones.
+     */
+    @Exported(inline = true)
+    public List<ReportUsage> getJobs() {
+        List<ReportUsage> jobs = new ArrayList<ReportUsage>();
+        for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+            ReportUsage usage = ReportUsage.forJobIfRecorded(job);
+            if (usage != null && usage.getReports() > 0) {
+                jobs.add(usage);
+            }
+        }
+        Collections.sort(jobs, new Comparator<ReportUsage>() {
+            public int compare(ReportUsage o1, ReportUsage o2) {
+                long s1 = o1.getSize();
+                long s2 = o2.getSize();
+                return s1 < s2 ? 1 : s1 > s2 ? -1 : 0;
+            }
+        });
+        return jobs;
+    }
+
+    /**
+     * Gets the total size in bytes of the reports of all the jobs.
+     */
+    @Exported
+    public long getSize() {
+        long size = 0;
+        for (ReportUsage usage : getJobs()) {
+            size += usage.getSize();
+        }
+        return size;
+    }
+
+    public String getDisplaySize(long size) {
+        return FileUtils.byteCountToDisplaySize(size);
+    }
+}
@@ -0,0 +1,254 @@
+package htmlpublisher;
+
+import hudson.Util;
+import hudson.model.Run;
+import hudson.util.AtomicFileWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import jenkins.util.Timer;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Versions of a project-level report.
+ * Each publication is copied into its own staging directory, which becomes the current version
+ * once it is complete by updating a pointer file. Readers resolve the pointer once per request,
+ * so they always get a complete report. Previous versions are removed in the background.
+ * <p>
+ * Layout in the {@code htmlreports} directory of the project:
+ * <ul>
+ *   <li>{@code <name>.current} - name of the current version</li>
+ *   <li>{@code <name>.versions/<version>} - published versions</li>
+ *   <li>{@code <name>.versions/.staging-<version>} - publications in progress</li>
+ *   <li>{@code <name>} - report published by older releases of the plugin, used when there is no pointer</li>
+ * </ul>
+ *
+ * @since TODO
+ */
+final class ReportVersions {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportVersions.class.getName());
+
+    private static final String STAGING_PREFIX = ".staging-";
+
+    /**
+     * Delay before previous versions get removed, so that requests being served can complete.
+     */
+    private static final long CLEANUP_DELAY_SECONDS = Long.getLong(ReportVersions.class.getName() + ".cleanupDelaySeconds", 60);
+
+    /**
+     * Age after which staging directories are considered as left over by interrupted publications.
+     */
+    private static final long STALE_STAGING_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<File, Object>();
+
+    private final File baseDir;
+    private final File versionsDir;
+    private final File pointer;
+
+    /**
+     * @param baseDir Report directory of the project, as used before reports were versioned
+     */
+    ReportVersions(@Nonnull File baseDir) {
+        this.baseDir = baseDir;
+        this.versionsDir = new File(baseDir.getParentFile(), baseDir.getName() + ".versions");
+        this.pointer = new File(baseDir.getParentFile(), baseDir.getName() + ".current");
+    }
+
+    private Object getLock() {
+        Object lock = LOCKS.get(baseDir);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = LOCKS.putIfAbsent(baseDir, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Gets the name of the current version.
+     * @return {@code null} if no version has been published, or if the pointer cannot be read
+     */
+    @CheckForNull
+    String getCurrentVersion() {
+        return ReportMetadataCache.get(pointer, POINTER);
+    }
+
+    private static final ReportMetadataCache.Loader<String> POINTER = new ReportMetadataCache.Loader<String>() {
+        public String load(File pointer) {
+            if (!pointer.isFile()) {
+                return null;
+            }
+            try {
+                String version = FileUtils.readFileToString(pointer, "UTF-8").trim();
+                return isValidVersion(version) ? version : null;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot read " + pointer, e);
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Gets the directory of the current version of the report.
+     */
+    @Nonnull
+    File getCurrentDir() {
+        String version = getCurrentVersion();
+        return version != null ? new File(versionsDir, version) : baseDir;
+    }
+
+    /**
+     * Gets a new staging directory for the publication made by the build. The directory is not created.
+     */
+    @Nonnull
+    File createStaging(@Nonnull Run<?, ?> build) {
+        return new File(versionsDir, STAGING_PREFIX + build.getNumber() + '-' + System.currentTimeMillis());
+    }
+
+    /**
+     * Makes the staging directory the current version of the report.
+     * An empty staging directory removes the report.
+     * @return False if a more recent build has already published the report, the staging directory is discarded then
+     */
+    boolean commit(@Nonnull File staging) throws IOException {
+        String version = staging.getName().substring(STAGING_PREFIX.length());
+        synchronized (getLock()) {
+            String current = getCurrentVersion();
+            if (current != null && compare(current, version) > 0) {
+                discard(staging);
+                return false;
+            }
+
+            String[] files = staging.list();
+            if (files == null || files.length == 0) {
+                discard(staging);
+                try {
+                    Util.deleteFile(pointer);
+                } finally {
+                    ReportMetadataCache.invalidate(pointer);
+                }
+                discard(baseDir);
+            } else {
+                File dir = new File(versionsDir, version);
+                if (!staging.renameTo(dir)) {
+                    throw new IOException("Cannot move " + staging + " to " + dir);
+                }
+                File[] stagingSiblings = getSiblings(staging);
+                File[] siblings = getSiblings(dir);
+                for (int i = 0; i < siblings.length; i++) {
+                    if (stagingSiblings[i].exists() && !stagingSiblings[i].renameTo(siblings[i])) {
+                        throw new IOException("Cannot move " + stagingSiblings[i] + " to " + siblings[i]);
+                    }
+                }
+
+                AtomicFileWriter w = new AtomicFileWriter(pointer, "UTF-8");
+                try {
+                    w.write(version);
+                    w.commit();
+                } finally {
+                    w.abort();
+                    ReportMetadataCache.invalidate(pointer);
+                }
+            }
+        }
+        scheduleCleanup();
+        return true;
+    }
+
+    /**
+     * Removes a version or a staging directory, along with the files stored next to it.
+     */
+    void discard(@Nonnull File dir) {
+        try {
+            Util.deleteRecursive(dir);
+            for (File sibling : getSiblings(dir)) {
+                Util.deleteRecursive(sibling);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot remove " + dir, e);
+        } finally {
+            ReportMetadataCache.invalidate(dir);
+        }
+    }
+
+    private void scheduleCleanup() {
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                try {
+                    cleanup();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to remove previous versions of " + baseDir, e);
+                }
+            }
+        }, CLEANUP_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Removes all versions but the current one, as well as abandoned staging directories.
+     */
+    void cleanup() throws IOException {
+        synchronized (getLock()) {
+            String current = getCurrentVersion();
+            if (current != null && baseDir.exists()) {
+                // Report published by an older release of the plugin
+                discard(baseDir);
+            }
+            File[] files = versionsDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(".manifest") || name.endsWith(".gz")) {
+                    // Removed along with their version
+                    continue;
+                }
+                boolean obsolete = name.startsWith(STAGING_PREFIX)
+                        ? System.currentTimeMillis() - f.lastModified() > STALE_STAGING_MILLIS
+                        : !name.equals(current);
+                if (obsolete) {
+                    discard(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the files stored next to a version, which belong to it.
+     */
+    private static File[] getSiblings(File dir) {
+        return new File[] {ReportManifest.getFile(dir), ReportPrecompression.getDir(dir)};
+    }
+
+    private static boolean isValidVersion(String version) {
+        return version.matches("\\d+-\\d+");
+    }
+
+    /**
+     * Compares versions by build number, then by publication time.
+     */
+    private static int compare(String v1, String v2) {
+        String[] p1 = v1.split("-");
+        String[] p2 = v2.split("-");
+        for (int i = 0; i < 2; i++) {
+            long l1 = Long.parseLong(p1[i]);
+            long l2 = Long.parseLong(p2[i]);
+            if (l1 != l2) {
+                return l1 < l2 ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,39 @@
+package htmlpublisher;
+
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Visits an explicit list of files of a directory, so that only the files known to be missing
+ * on the master get transferred.
+ *
+ * @since TODO
+ */
+final class SelectedFiles extends DirScanner {
+    private final List<String> paths;
+
+    /**
+     * @param paths Paths relative to the scanned directory, with '/' as a separator
+     */
+    SelectedFiles(Collection<String> paths) {
+        this.paths = new ArrayList<String>(paths);
+    }
+
+    @Override
+    public void scan(File dir, FileVisitor visitor) throws IOException {
+        for (String path : paths) {
+            File f = new File(dir, path.replace('/', File.separatorChar));
+            if (f.isFile()) {
+                visitor.visit(f, path);
+            }
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
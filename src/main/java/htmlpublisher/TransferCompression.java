@@ -0,0 +1,31 @@
+package htmlpublisher;
+
+/**
+ * Defines how report files are compressed while they are transferred from the node to the master.
+ *
+ * @since TODO
+ */
+public enum TransferCompression {
+    /**
+     * Files are transferred with the default stream of the remoting layer.
+     */
+    DEFAULT("Default"),
+    /**
+     * Files are transferred uncompressed, which saves CPU on the node and on the master.
+     */
+    NONE("No compression"),
+    /**
+     * Files are compressed with GZip on the node, using the configured compression level.
+     */
+    GZIP("GZip");
+
+    private final String displayName;
+
+    TransferCompression(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
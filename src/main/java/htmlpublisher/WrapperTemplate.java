@@ -0,0 +1,169 @@
+package htmlpublisher;
+
+import hudson.Util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Template of the wrapper page, which displays the report files in tabs.
+ * Templates are parsed once into literal parts and variables, and cached by their text.
+ * <p>
+ * Variables are written as {@code ${name}}, unknown variables are kept as they are:
+ * <ul>
+ *   <li>{@code ${tabs}} - tabs of the report files</li>
+ *   <li>{@code ${scripts}} - scripts setting up the links of the page</li>
+ *   <li>{@code ${reportName}}, {@code ${jobName}}, {@code ${jobUrl}}, {@code ${zipUrl}}</li>
+ * </ul>
+ *
+ * @since TODO
+ */
+final class WrapperTemplate {
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\{(tabs|scripts|reportName|jobName|jobUrl|zipUrl)\\}");
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final Map<String, WrapperTemplate> CACHE = new LinkedHashMap<String, WrapperTemplate>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WrapperTemplate> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static volatile WrapperTemplate defaultTemplate;
+
+    /**
+     * Literal parts at even indexes, variable names at odd indexes.
+     */
+    private final List<String> parts;
+
+    private WrapperTemplate(List<String> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Gets the compiled template for the given text.
+     */
+    @Nonnull
+    static WrapperTemplate compile(@Nonnull String text) {
+        synchronized (CACHE) {
+            WrapperTemplate template = CACHE.get(text);
+            if (template == null) {
+                template = parse(text);
+                CACHE.put(text, template);
+            }
+            return template;
+        }
+    }
+
+    private static WrapperTemplate parse(String text) {
+        List<String> parts = new ArrayList<String>();
+        Matcher m = VARIABLE.matcher(text);
+        int start = 0;
+        while (m.find()) {
+            parts.add(text.substring(start, m.start()));
+            parts.add(m.group(1));
+            start = m.end();
+        }
+        parts.add(text.substring(start));
+        return new WrapperTemplate(Collections.unmodifiableList(parts));
+    }
+
+    /**
+     * Gets the template bundled with the plugin, made of the header and footer resources.
+     */
+    @Nonnull
+    static WrapperTemplate getDefault() throws IOException {
+        WrapperTemplate template = defaultTemplate;
+        if (template == null) {
+            String text = readResource("header.html") + "${tabs}\n${scripts}\n" + readResource("footer.html");
+            template = parse(text);
+            defaultTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * Gets the template of the target, falling back to the global template, and to the default one.
+     */
+    @Nonnull
+    static WrapperTemplate forTarget(@Nonnull HtmlPublisherTarget target) throws IOException {
+        String text = target.getWrapperTemplate();
+        if (text == null) {
+            HtmlPublisher.DescriptorImpl descriptor = HtmlPublisher.getGlobalConfig();
+            text = descriptor != null ? descriptor.getWrapperTemplate() : null;
+        }
+        return text != null ? compile(text) : getDefault();
+    }
+
+    private static String readResource(String name) throws IOException {
+        InputStream is = WrapperTemplate.class.getResourceAsStream("/htmlpublisher/HtmlPublisher/" + name);
+        if (is == null) {
+            throw new FileNotFoundException("Missing resource " + name);
+        }
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Writes the page.
+     * @param values Values of the variables, missing values are written as empty strings
+     */
+    void render(@Nonnull Map<String, String> values, @Nonnull Writer w) throws IOException {
+        for (int i = 0; i < parts.size(); i++) {
+            if (i % 2 == 0) {
+                w.write(parts.get(i));
+            } else {
+                String value = values.get(parts.get(i));
+                if (value != null) {
+                    w.write(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the page to the file in UTF-8.
+     * An existing file is replaced rather than overwritten, as it might be linked from a previous version of the report.
+     */
+    void render(@Nonnull Map<String, String> values, @Nonnull File file) throws IOException {
+        if (file.exists()) {
+            Util.deleteFile(file);
+        }
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            render(values, w);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Normalizes a configured template, blank templates mean the default template.
+     */
+    @CheckForNull
+    static String normalize(@CheckForNull String text) {
+        return text == null || text.trim().length() == 0 ? null : text;
+    }
+}
@@ -27,21 +27,63 @@ import htmlpublisher.HtmlPublisher;
 import htmlpublisher.HtmlPublisherTarget;
 import hudson.AbortException;
 import hudson.FilePath;
+import hudson.Extension;
 import hudson.Launcher;
+import hudson.model.InvisibleAction;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 
 /**
  * Execution for {@link PublishHTMLStep}.
+ * The report is published on a background thread, so that the thread running the Pipeline
+ * is not blocked during the transfer, and other branches keep running.
+ * A bounded number of reports are published at the same time, the other ones wait for their turn.
+ * If Jenkins is restarted during the publication, the report is published again once the build resumes,
+ * unless the build records that the publication has completed. Publications in progress are interrupted
+ * when Jenkins shuts down, without completing the step.
  * @author Oleg Nenashev
  * @since TODO
  */
-public class PublishHTMLStepExecution extends AbstractSynchronousStepExecution<Void> {
-    
+public class PublishHTMLStepExecution extends AbstractStepExecutionImpl {
+
+    /**
+     * Maximum number of reports published at the same time by all the builds.
+     */
+    private static final int MAX_THREADS = Integer.getInteger(PublishHTMLStepExecution.class.getName() + ".maxThreads", 10);
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "publishHTML"));
+
+    static {
+        // Threads are released when no report is published
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executions, which are publishing their report.
+     */
+    private static final Set<PublishHTMLStepExecution> RUNNING =
+            Collections.newSetFromMap(new ConcurrentHashMap<PublishHTMLStepExecution, Boolean>());
+
     @StepContextParameter
     private transient TaskListener listener;
 
@@ -56,20 +98,152 @@ public class PublishHTMLStepExecution extends AbstractSynchronousStepExecution<V
 
     @Inject
     private transient PublishHTMLStep step;
-    
+
+    /**
+     * Target being published, kept to publish it again when the build resumes.
+     */
+    private HtmlPublisherTarget target;
+
+    /**
+     * Identifies the publication in the {@link CompletedPublications} of the build.
+     */
+    private String id;
+
+    private transient volatile Future<?> task;
+
+    /**
+     * Set once the step has been stopped, or when Jenkins shuts down. The step is not completed by the publication then.
+     */
+    private transient volatile boolean stopped;
+
     @Override
-    protected Void run() throws Exception {             
-        final HtmlPublisherTarget target = step.getTarget();
+    public boolean start() throws Exception {
+        target = step.getTarget();
         if (target == null) {
             throw new AbortException("Cannot publish the report. Target is not specified");
         }
-        
-        boolean res = HtmlPublisher.publishReports(build, ws, launcher, listener, 
-                Arrays.asList(target), HtmlPublisher.class);
-        if (!res) {
-            throw new AbortException("Cannot publish HTML files");
-        }      
-        return null;
+        id = UUID.randomUUID().toString();
+        submit(new Runnable() {
+            public void run() {
+                publish(build, ws, launcher, listener);
+            }
+        });
+        return false;
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        stopped = true;
+        Future<?> task = this.task;
+        if (task != null) {
+            task.cancel(true);
+        }
+        getContext().onFailure(cause);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        submit(new Runnable() {
+            public void run() {
+                StepContext context = getContext();
+                try {
+                    Run<?, ?> build = context.get(Run.class);
+                    TaskListener listener = context.get(TaskListener.class);
+                    if (CompletedPublications.contains(build, id)) {
+                        // Jenkins has been restarted after the publication, but before the step completed
+                        listener.getLogger().println("[htmlpublisher] The report has been published before Jenkins was restarted");
+                        context.onSuccess(null);
+                        return;
+                    }
+                    // The workspace is available again once the node has reconnected
+                    listener.getLogger().println("[htmlpublisher] Jenkins has been restarted while the report was published, publishing it again");
+                    publish(build, context.get(FilePath.class), context.get(Launcher.class), listener);
+                } catch (Exception e) {
+                    if (!stopped) {
+                        context.onFailure(e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void submit(final Runnable publication) {
+        RUNNING.add(this);
+        task = EXECUTOR.submit(new Runnable() {
+            public void run() {
+                try {
+                    publication.run();
+                } finally {
+                    RUNNING.remove(PublishHTMLStepExecution.this);
+                }
+            }
+        });
+    }
+
+    private void publish(Run<?, ?> build, FilePath ws, Launcher launcher, TaskListener listener) {
+        StepContext context = getContext();
+        try {
+            boolean res = HtmlPublisher.publishReports(build, ws, launcher, listener,
+                    Arrays.asList(target), HtmlPublisher.class);
+            if (!res) {
+                throw new AbortException("Cannot publish HTML files");
+            }
+            if (id != null) {
+                // Executions started by older releases have no identifier, they are always published again
+                CompletedPublications.add(build, id);
+            }
+            context.onSuccess(null);
+        } catch (Exception e) {
+            // The step has already been completed if it has been stopped, or it resumes once Jenkins has restarted
+            if (!stopped) {
+                context.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Interrupts the publications in progress when Jenkins shuts down.
+     * The steps are left running, their reports are published again once their builds resume.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            for (PublishHTMLStepExecution execution : RUNNING) {
+                execution.stopped = true;
+                Future<?> task = execution.task;
+                if (task != null) {
+                    task.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publications of the build, which have completed. Saved with the build, so that they are known when it resumes.
+     */
+    static final class CompletedPublications extends InvisibleAction {
+        private final Set<String> ids = new HashSet<String>();
+
+        static boolean contains(Run<?, ?> build, String id) {
+            synchronized (CompletedPublications.class) {
+                CompletedPublications completed = build.getAction(CompletedPublications.class);
+                return completed != null && completed.ids.contains(id);
+            }
+        }
+
+        static void add(Run<?, ?> build, String id) throws IOException {
+            synchronized (CompletedPublications.class) {
+                CompletedPublications completed = build.getAction(CompletedPublications.class);
+                if (completed == null) {
+                    completed = new CompletedPublications();
+                    build.addAction(completed);
+                }
+                completed.ids.add(id);
+            }
+            build.save();
+        }
     }
 
     private static final long serialVersionUID = 1L;
@@ -26,17 +26,25 @@ package htmlpublisher.workflow;
 import htmlpublisher.HtmlPublisherTarget;
 import hudson.Extension;
 import hudson.model.Action;
+import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import jenkins.model.TransientActionFactory;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
 
 /**
  * Produces actions for workflow jobs.
+ * The reports of a job are read once from its last successful build, and read again
+ * when another build becomes the last successful one. Only the report targets are cached,
+ * the actions referencing the job are created on each call.
  * @author Oleg Nenashev
  * @since TODO
  */
@@ -44,6 +52,34 @@ import org.kohsuke.accmod.restrictions.DoNotUse;
 @Extension
 public class WorkflowActionsFactory extends TransientActionFactory<Job> {
 
+    /**
+     * Maximum number of jobs, whose reports are cached.
+     */
+    private static final int MAX_ENTRIES = Integer.getInteger(WorkflowActionsFactory.class.getName() + ".maxEntries", 1000);
+
+    /**
+     * Reports of the jobs by full name.
+     */
+    private static final Map<String, Reports> CACHE = new LinkedHashMap<String, Reports>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Reports> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Reports published by a build.
+     */
+    private static final class Reports {
+        private final int buildNumber;
+        private final List<HtmlPublisherTarget> targets;
+
+        Reports(int buildNumber, List<HtmlPublisherTarget> targets) {
+            this.buildNumber = buildNumber;
+            this.targets = targets;
+        }
+    }
+
     @Override 
     public Class<Job> type() {
         return Job.class;
@@ -51,25 +87,76 @@ public class WorkflowActionsFactory extends TransientActionFactory<Job> {
 
     @Override 
     public Collection<? extends Action> createFor(Job j) {
-        List<Action> actions = new LinkedList<Action>();
-        if (j.getClass().getCanonicalName().startsWith("org.jenkinsci.plugins.workflow"))
-        {
-            final Run<?,?> r = j.getLastSuccessfulBuild();
-            if (r != null) {
-                // If reports are being saved on the build level (keep for all builds)
-                List<HtmlPublisherTarget.HTMLBuildAction> reports = r.getActions(HtmlPublisherTarget.HTMLBuildAction.class);
-                for (HtmlPublisherTarget.HTMLBuildAction report : reports) {
-                    actions.add(report.getHTMLTarget().getProjectAction(j));
-                }
-                
-                // If reports are being saved on the project level
-                List<HtmlPublisherTarget.HTMLPublishedForProjectMarkerAction> projectLevelReports = 
-                        r.getActions(HtmlPublisherTarget.HTMLPublishedForProjectMarkerAction.class);
-                for (HtmlPublisherTarget.HTMLPublishedForProjectMarkerAction report : projectLevelReports) {
-                    actions.add(report.getHTMLTarget().getProjectAction(j));
-                }
-            }       
+        if (!j.getClass().getCanonicalName().startsWith("org.jenkinsci.plugins.workflow")) {
+            return Collections.emptyList();
+        }
+        List<Action> actions = new ArrayList<Action>();
+        for (HtmlPublisherTarget target : getTargets(j)) {
+            actions.add(target.getProjectAction(j));
         }
         return actions;
     }
+
+    /**
+     * Gets the targets of the reports published by the last successful build of the job.
+     */
+    private static List<HtmlPublisherTarget> getTargets(Job<?, ?> j) {
+        final Run<?,?> r = j.getLastSuccessfulBuild();
+        if (r == null) {
+            return Collections.emptyList();
+        }
+        String key = j.getFullName();
+        synchronized (CACHE) {
+            Reports reports = CACHE.get(key);
+            if (reports != null && reports.buildNumber == r.getNumber()) {
+                return reports.targets;
+            }
+        }
+        List<HtmlPublisherTarget> targets = Collections.unmodifiableList(computeFor(r));
+        synchronized (CACHE) {
+            // Entries are checked against the last successful build when read, an outdated one is just computed again
+            CACHE.put(key, new Reports(r.getNumber(), targets));
+        }
+        return targets;
+    }
+
+    private static List<HtmlPublisherTarget> computeFor(Run<?, ?> r) {
+        List<HtmlPublisherTarget> targets = new ArrayList<HtmlPublisherTarget>();
+        // If reports are being saved on the build level (keep for all builds)
+        List<HtmlPublisherTarget.HTMLBuildAction> reports = r.getActions(HtmlPublisherTarget.HTMLBuildAction.class);
+        for (HtmlPublisherTarget.HTMLBuildAction report : reports) {
+            targets.add(report.getHTMLTarget());
+        }
+
+        // If reports are being saved on the project level
+        List<HtmlPublisherTarget.HTMLPublishedForProjectMarkerAction> projectLevelReports = 
+                r.getActions(HtmlPublisherTarget.HTMLPublishedForProjectMarkerAction.class);
+        for (HtmlPublisherTarget.HTMLPublishedForProjectMarkerAction report : projectLevelReports) {
+            targets.add(report.getHTMLTarget());
+        }
+        return targets;
+    }
+
+    /**
+     * Forgets the reports of deleted and renamed jobs, a new job with the same name has its own builds.
+     */
+    @Restricted(DoNotUse.class)
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            forget(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            forget(oldFullName);
+        }
+
+        private static void forget(String fullName) {
+            synchronized (CACHE) {
+                CACHE.remove(fullName);
+            }
+        }
+    }
 }
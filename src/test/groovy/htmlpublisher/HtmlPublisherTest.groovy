@@ -1,5 +1,12 @@
 package htmlpublisher
 
+import hudson.matrix.AxisList
+import hudson.matrix.MatrixProject
+import hudson.matrix.TextAxis
+import hudson.model.ManagementLink
+import hudson.model.Result
+import hudson.model.Run
+import hudson.util.StreamTaskListener
 import org.jvnet.hudson.test.HudsonTestCase
 
 /**
@@ -26,4 +33,215 @@ public class HtmlPublisherTest extends HudsonTestCase {
         }
     }
 
+    /**
+     * Makes sure that a report, which cannot be published, fails the build
+     * without preventing the other reports from being published in parallel.
+     */
+    public void testPublishInParallelWithFailure() {
+        def ws = createTmpDir()
+        new File(ws, "good").mkdirs()
+        new File(ws, "good/index.html").text = "<html><body>Good</body></html>"
+        jenkins.getDescriptorByType(HtmlPublisher.DescriptorImpl).publishParallelism = 2
+
+        def p = createFreeStyleProject()
+        p.customWorkspace = ws.path
+        p.publishersList.add(new HtmlPublisher([
+                new HtmlPublisherTarget("missing", "missing", "index.html", true, false, false),
+                new HtmlPublisherTarget("good", "good", "index.html", true, false, false)]))
+
+        def b = assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get())
+        assertLogContains("does not exist", b)
+        assertTrue(new File(b.rootDir, "htmlreports/good/index.html").file)
+        assertEquals(["good"], b.getActions(HtmlPublisherTarget.HTMLBuildAction).collect { it.HTMLTarget.reportName })
+    }
+
+    /**
+     * Makes sure that a republished project-level report is served instead of the cached previous version.
+     */
+    public void testRepublishedReportIsServed() {
+        def ws = createTmpDir()
+        new File(ws, "report").mkdirs()
+        new File(ws, "report/index.html").text = "<html><body>First</body></html>"
+
+        def p = createFreeStyleProject()
+        p.customWorkspace = ws.path
+        p.publishersList.add(new HtmlPublisher([new HtmlPublisherTarget("report", "report", "index.html", false, false, false)]))
+        assertBuildStatus(Result.SUCCESS, p.scheduleBuild2(0).get())
+        def wc = createWebClient()
+        assertTrue(wc.goTo(p.url + "report/index.html").webResponse.contentAsString.contains("First"))
+
+        new File(ws, "report/index.html").text = "<html><body>Second</body></html>"
+        assertBuildStatus(Result.SUCCESS, p.scheduleBuild2(0).get())
+        assertTrue(wc.goTo(p.url + "report/index.html").webResponse.contentAsString.contains("Second"))
+    }
+
+    /**
+     * Makes sure that the link to a report disappears once the report has been removed by the retention policy.
+     */
+    public void testRemovedReportIsNotLinked() {
+        def ws = createTmpDir()
+        new File(ws, "report").mkdirs()
+        new File(ws, "report/index.html").text = "<html><body>Report</body></html>"
+
+        def target = new HtmlPublisherTarget("report", "report", "index.html", true, false, false)
+        def p = createFreeStyleProject()
+        p.customWorkspace = ws.path
+        p.publishersList.add(new HtmlPublisher([target]))
+        def b = assertBuildStatus(Result.SUCCESS, p.scheduleBuild2(0).get())
+        def action = p.getAction(HtmlPublisherTarget.HTMLAction)
+        assertEquals("graph.gif", action.iconFileName)
+
+        ReportRetention.remove(b, target)
+        assertNull(action.iconFileName)
+        assertNull(b.getAction(HtmlPublisherTarget.HTMLBuildAction))
+    }
+
+    /**
+     * Makes sure that the report links of matrix configurations follow the reports configured in their project.
+     */
+    public void testMatrixConfigurationActionsFollowReports() {
+        def p = jenkins.createProject(MatrixProject, "matrix")
+        p.axes = new AxisList(new TextAxis("x", "a", "b"))
+        def reportNames = {
+            p.activeConfigurations.collect { mc -> mc.getActions(HtmlPublisherTarget.HTMLAction).collect { it.HTMLTarget.reportName } }
+        }
+
+        p.publishersList.add(new HtmlPublisher([new HtmlPublisherTarget("first", "first", "index.html", false, false, true)]))
+        assertEquals([["first"], ["first"]], reportNames())
+
+        p.publishersList.replace(new HtmlPublisher([new HtmlPublisherTarget("second", "second", "index.html", false, false, true)]))
+        assertEquals([["second"], ["second"]], reportNames())
+
+        p.publishersList.removeAll(HtmlPublisher)
+        assertEquals([[], []], reportNames())
+    }
+
+    /**
+     * Makes sure that lowering the size of the memory cache of report files releases the cached files.
+     */
+    public void testFileCacheSizeIsApplied() {
+        def descriptor = jenkins.getDescriptorByType(HtmlPublisher.DescriptorImpl)
+        def cache = ReportFileCache.get()
+        descriptor.fileCacheSize = 1
+        cache.put("small", new byte[1024])
+        assertEquals(1, cache.entries)
+
+        descriptor.fileCacheSize = 0
+        assertFalse(cache.isEnabled())
+        assertEquals(0, cache.entries)
+        assertEquals(0, cache.size)
+    }
+
+    /**
+     * Makes sure that only the reports of the most recent builds are kept.
+     */
+    public void testRetentionByCount() {
+        def target = new HtmlPublisherTarget("report", "report", "index.html", true, false, false)
+        target.retentionBuilds = 2
+        def builds = buildReports(target, 4, 0)
+
+        ReportRetention.prune(builds[0].parent, target, 100, StreamTaskListener.fromStdout())
+        assertEquals([false, false, true, true], builds.collect { hasReport(it) })
+    }
+
+    /**
+     * Makes sure that the reports of old builds are removed, except the most recent one.
+     */
+    public void testRetentionByAge() {
+        def target = new HtmlPublisherTarget("report", "report", "index.html", true, false, false)
+        target.retentionDays = 7
+        def builds = buildReports(target, 3, 0)
+        def timestamp = Run.getDeclaredField("timestamp")
+        timestamp.accessible = true
+        def days = 24L * 60 * 60 * 1000
+        timestamp.setLong(builds[0], System.currentTimeMillis() - 30 * days)
+        timestamp.setLong(builds[1], System.currentTimeMillis() - 1 * days)
+
+        ReportRetention.prune(builds[0].parent, target, 100, StreamTaskListener.fromStdout())
+        assertEquals([false, true, true], builds.collect { hasReport(it) })
+
+        // The most recent report is kept even if it is too old
+        timestamp.setLong(builds[1], System.currentTimeMillis() - 30 * days)
+        timestamp.setLong(builds[2], System.currentTimeMillis() - 30 * days)
+        ReportRetention.prune(builds[0].parent, target, 100, StreamTaskListener.fromStdout())
+        assertEquals([false, false, true], builds.collect { hasReport(it) })
+    }
+
+    /**
+     * Makes sure that the most recent reports are kept within the size limit.
+     */
+    public void testRetentionBySize() {
+        def target = new HtmlPublisherTarget("report", "report", "index.html", true, false, false)
+        target.retentionSizeMB = 1
+        def builds = buildReports(target, 3, 400 * 1024)
+
+        ReportRetention.prune(builds[0].parent, target, 100, StreamTaskListener.fromStdout())
+        assertEquals([false, true, true], builds.collect { hasReport(it) })
+    }
+
+    /**
+     * Makes sure that the most recent report is kept even if it exceeds the size limit on its own.
+     */
+    public void testRetentionKeepsMostRecentReport() {
+        def target = new HtmlPublisherTarget("report", "report", "index.html", true, false, false)
+        target.retentionSizeMB = 1
+        def builds = buildReports(target, 2, 2 * 1024 * 1024)
+
+        ReportRetention.prune(builds[0].parent, target, 100, StreamTaskListener.fromStdout())
+        assertEquals([false, true], builds.collect { hasReport(it) })
+    }
+
+    /**
+     * Makes sure that the disk usage of the reports is recorded, updated when builds are deleted, and aggregated.
+     */
+    public void testReportUsage() {
+        def target = new HtmlPublisherTarget("report", "report", "index.html", true, false, false)
+        def builds = buildReports(target, 3, 1000)
+        def p = builds[0].parent
+        def usage = ReportUsage.forJob(p)
+        assertEquals(3, usage.reports)
+        // The index page, the data file and the wrapper page of each report
+        assertEquals(9, usage.files)
+        def total = usage.size
+        def deletedSize = ReportUsage.measure(new File(builds[0].rootDir, "htmlreports/report")).getSize()
+        assertTrue(deletedSize > 1000)
+        assertTrue(new File(p.rootDir, "htmlpublisher-usage.xml").file)
+
+        builds[0].delete()
+        assertEquals(2, usage.reports)
+        assertEquals(total - deletedSize, usage.size)
+        assertEquals(1, usage.targets.size())
+        assertEquals("report", usage.targets[0].name)
+        assertEquals(2, usage.targets[0].reports)
+        assertEquals(6, usage.targets[0].files)
+
+        // Jobs without reports are not listed, and get no index
+        def other = createFreeStyleProject()
+        def link = ManagementLink.all().get(ReportUsageLink)
+        assertEquals([p.fullName], link.jobs.collect { it.name })
+        assertEquals(usage.size, link.size)
+        assertFalse(new File(other.rootDir, "htmlpublisher-usage.xml").exists())
+    }
+
+    /**
+     * Runs a project publishing the report of the target.
+     * @param dataSize Size of the data file published along with the index page
+     * @return Builds, from the oldest one
+     */
+    private List<Run> buildReports(HtmlPublisherTarget target, int count, int dataSize) {
+        def ws = createTmpDir()
+        new File(ws, "report").mkdirs()
+        new File(ws, "report/index.html").text = "<html><body>Report</body></html>"
+        if (dataSize > 0) {
+            new File(ws, "report/data.bin").bytes = new byte[dataSize]
+        }
+        def p = createFreeStyleProject()
+        p.customWorkspace = ws.path
+        p.publishersList.add(new HtmlPublisher([target]))
+        return (1..count).collect { assertBuildStatus(Result.SUCCESS, p.scheduleBuild2(0).get()) }
+    }
+
+    private static boolean hasReport(Run build) {
+        return new File(build.rootDir, "htmlreports/report").exists()
+    }
 }
@@ -0,0 +1,91 @@
+package htmlpublisher;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReportFileCacheTest {
+
+    @Test
+    public void cachedFiles() {
+        ReportFileCache cache = new ReportFileCache(100);
+        assertTrue(cache.isEnabled());
+        assertNull(cache.get("a"));
+        cache.put("a", new byte[10]);
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("a"));
+        assertEquals(1, cache.getEntries());
+        assertEquals(10, cache.getSize());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(66, cache.getHitRatio());
+    }
+
+    @Test
+    public void replacedFiles() {
+        ReportFileCache cache = new ReportFileCache(100);
+        cache.put("a", new byte[10]);
+        cache.put("a", new byte[20]);
+        assertEquals(1, cache.getEntries());
+        assertEquals(20, cache.getSize());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesAreEvicted() {
+        ReportFileCache cache = new ReportFileCache(100);
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        assertNotNull(cache.get("a"));
+        cache.put("c", new byte[40]);
+        assertNotNull("Recently used files should be kept", cache.get("a"));
+        assertNull("Least recently used files should be evicted", cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(80, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        ReportFileCache cache = new ReportFileCache(100);
+        for (int i = 0; i < 50; i++) {
+            cache.put("f" + i, new byte[7]);
+            assertTrue(cache.getSize() <= 100);
+        }
+        assertEquals(14, cache.getEntries());
+        assertEquals(98, cache.getSize());
+        assertEquals(36, cache.getEvictions());
+
+        cache.put("big", new byte[101]);
+        assertNull("Files bigger than the cache should not be cached", cache.get("big"));
+        assertEquals(14, cache.getEntries());
+    }
+
+    @Test
+    public void loweredSizeEvictsFiles() {
+        ReportFileCache cache = new ReportFileCache(100);
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        cache.setMaxSize(50);
+        assertEquals(1, cache.getEntries());
+        assertEquals(40, cache.getSize());
+        assertNotNull(cache.get("b"));
+
+        cache.setMaxSize(0);
+        assertFalse(cache.isEnabled());
+        assertEquals("Disabling the cache should release all the files", 0, cache.getEntries());
+        assertEquals(0, cache.getSize());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void clear() {
+        ReportFileCache cache = new ReportFileCache(100);
+        cache.put("a", new byte[40]);
+        cache.get("a");
+        cache.clear();
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getHitRatio());
+    }
+}
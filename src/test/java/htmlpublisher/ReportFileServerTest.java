@@ -0,0 +1,86 @@
+package htmlpublisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReportFileServerTest {
+
+    private static final long LENGTH = 100;
+
+    @Test
+    public void singleRanges() {
+        assertRanges("bytes=0-9", 0, 9);
+        assertRanges("bytes=90-200", 90, 99);
+        assertRanges("bytes= 10-19 ", 10, 19);
+    }
+
+    @Test
+    public void suffixRanges() {
+        assertRanges("bytes=-10", 90, 99);
+        assertRanges("bytes=-200", 0, 99);
+    }
+
+    @Test
+    public void openEndedRanges() {
+        assertRanges("bytes=50-", 50, 99);
+        assertRanges("bytes=0-", 0, 99);
+    }
+
+    @Test
+    public void unsatisfiableRanges() {
+        // An empty list is answered with 416 Requested Range Not Satisfiable
+        assertRanges("bytes=100-");
+        assertRanges("bytes=200-300");
+        assertRanges("bytes=-0");
+        assertRanges("bytes=100-,-0");
+    }
+
+    @Test
+    public void partlySatisfiableRanges() {
+        assertRanges("bytes=200-300,0-9", 0, 9);
+    }
+
+    @Test
+    public void overlappingRanges() {
+        assertRanges("bytes=0-10,5-20", 0, 20);
+        assertRanges("bytes=0-10,11-20,30-40", 0, 20, 30, 40);
+        assertRanges("bytes=50-60,0-9,-5", 0, 9, 50, 60, 95, 99);
+        assertRanges("bytes=0-,10-20,-10", 0, 99);
+    }
+
+    @Test
+    public void tooManyRanges() {
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i <= ReportFileServer.MAX_RANGES; i++) {
+            header.append(i > 0 ? "," : "").append(i * 2).append('-').append(i * 2);
+        }
+        assertNull("The whole file should be sent", ReportFileServer.parseRanges(header.toString(), LENGTH));
+    }
+
+    @Test
+    public void invalidRanges() {
+        assertNull(ReportFileServer.parseRanges("items=0-9", LENGTH));
+        assertNull(ReportFileServer.parseRanges("bytes=9-0", LENGTH));
+        assertNull(ReportFileServer.parseRanges("bytes=a-b", LENGTH));
+        assertNull(ReportFileServer.parseRanges("bytes=10", LENGTH));
+    }
+
+    /**
+     * @param expected Inclusive offsets of the expected ranges
+     */
+    private static void assertRanges(String header, long... expected) {
+        List<long[]> ranges = ReportFileServer.parseRanges(header, LENGTH);
+        assertNotNull("Ranges of " + header + " should be supported", ranges);
+        List<String> actual = new ArrayList<String>();
+        for (long[] range : ranges) {
+            actual.add(range[0] + "-" + range[1]);
+        }
+        List<String> wanted = new ArrayList<String>();
+        for (int i = 0; i < expected.length; i += 2) {
+            wanted.add(expected[i] + "-" + expected[i + 1]);
+        }
+        assertEquals(header, wanted, actual);
+    }
+}
@@ -0,0 +1,94 @@
+package htmlpublisher;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ReportManifestTest {
+
+    private static final String DIGEST = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void read() throws Exception {
+        ReportManifest manifest = read("# storage=DEDUPLICATED", DIGEST + "\t3\t1000\tdir/index.html");
+        assertEquals(ReportStorage.DEDUPLICATED, manifest.getStorage());
+        assertEquals(DIGEST, manifest.get("dir/index.html").getDigest());
+        assertTrue(manifest.isDirectory("dir"));
+    }
+
+    @Test
+    public void digests() {
+        assertTrue(ReportManifest.isDigest(DIGEST));
+        assertFalse(ReportManifest.isDigest(null));
+        assertFalse(ReportManifest.isDigest("01"));
+        assertFalse(ReportManifest.isDigest(DIGEST.toUpperCase()));
+        assertFalse(ReportManifest.isDigest("../../../../secrets/master.key"));
+        assertFalse(ReportManifest.isDigest(DIGEST.substring(1) + "g"));
+    }
+
+    @Test
+    public void invalidDigests() throws Exception {
+        assertInvalid("../../../../secrets/master.key\t3\t1000\tindex.html");
+        assertInvalid("01\t3\t1000\tindex.html");
+    }
+
+    @Test
+    public void paths() {
+        assertTrue(ReportManifest.isPath("index.html"));
+        assertTrue(ReportManifest.isPath("a/b..c/.d"));
+        assertFalse(ReportManifest.isPath(null));
+        assertFalse(ReportManifest.isPath(""));
+        assertFalse(ReportManifest.isPath("/etc/passwd"));
+        assertFalse(ReportManifest.isPath("a/../../b"));
+        assertFalse(ReportManifest.isPath("a/./b"));
+        assertFalse(ReportManifest.isPath("a//b"));
+        assertFalse(ReportManifest.isPath("a/"));
+        assertFalse(ReportManifest.isPath("..\\secrets"));
+        assertFalse(ReportManifest.isPath("C:/secrets"));
+    }
+
+    @Test
+    public void invalidPaths() throws Exception {
+        assertInvalid(DIGEST + "\t3\t1000\t../../secrets/master.key");
+        assertInvalid(DIGEST + "\t3\t1000\t/etc/passwd");
+        assertInvalid(DIGEST + "\t3\t1000\t");
+    }
+
+    @Test
+    public void resolve() throws Exception {
+        File dir = tmp.newFolder();
+        assertEquals(new File(dir, "a/b.html"), ReportManifest.resolve(dir, "a/b.html"));
+        try {
+            ReportManifest.resolve(dir, "../b.html");
+            fail("Paths outside of the directory should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private ReportManifest read(String... lines) throws IOException {
+        File file = tmp.newFile();
+        StringBuilder content = new StringBuilder("# htmlpublisher manifest v1\n");
+        for (String line : lines) {
+            content.append(line).append('\n');
+        }
+        FileUtils.writeStringToFile(file, content.toString(), "UTF-8");
+        return ReportManifest.read(file);
+    }
+
+    private void assertInvalid(String line) {
+        try {
+            read(line);
+            fail("The manifest should be rejected: " + line);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package htmlpublisher;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReportMinificationTest {
+
+    @Test
+    public void jsComments() {
+        assertEquals("var a = 1;\nvar b = 2;", ReportMinification.minifyJs("var a = 1; // one\n/* two */ var b = 2;\n"));
+        assertEquals("/*! license */\nvar a;", ReportMinification.minifyJs("/*! license */\n\n    var a;"));
+        assertEquals("function f() {}", ReportMinification.minifyJs("function f() {}\n//# sourceMappingURL=app.js.map\n"));
+    }
+
+    @Test
+    public void jsLineBreaks() {
+        // Automatic semicolon insertion depends on line breaks, including the ones in comments
+        assertEquals("return\nx", ReportMinification.minifyJs("return\n  /* c */\n  x"));
+        assertEquals("a\nb", ReportMinification.minifyJs("a/*\n*/b"));
+        assertEquals("a b", ReportMinification.minifyJs("a/* c */b"));
+    }
+
+    @Test
+    public void jsStrings() {
+        assertUnchanged("var s = 'a  // b', t = \"c /* d */\";");
+        assertUnchanged("var s = 'a\\\n    b';");
+        assertNull("Unterminated strings are not minified", ReportMinification.minifyJs("var s = 'a;\nvar t;"));
+    }
+
+    @Test
+    public void jsTemplateLiterals() {
+        assertUnchanged("var t = `a\n    ${ x }  // c\n`;");
+        assertUnchanged("var t = `${ `a  ${ {b: 1}.b }  c` }\n  d`;");
+        assertEquals("var t = `${ f({a: 1}) }  `;", ReportMinification.minifyJs("var t = `${ f({a: 1}) /* c */ }  `;"));
+        assertNull("Unterminated templates are not minified", ReportMinification.minifyJs("var t = `${ x }"));
+    }
+
+    @Test
+    public void jsRegularExpressions() {
+        assertEquals("var r = /\\/\\/ x/g;", ReportMinification.minifyJs("var r = /\\/\\/ x/g; // y"));
+        assertUnchanged("var r = /[/]  '/;");
+        assertUnchanged("return /'  /.test(s);");
+        assertEquals("var x = (a + b) / 2;", ReportMinification.minifyJs("var x = (a + b) / 2; // half"));
+        assertEquals("var x = a[0] / 2 / 3;", ReportMinification.minifyJs("var x = a[0] / 2 / 3; // sixth"));
+        assertEquals("var x = a.return / 2 / f(b) / 4;", ReportMinification.minifyJs("var x = a.return / 2 / f(b) / 4; // c"));
+        assertUnchanged("if (x) /a  b/.test(y);");
+    }
+
+    @Test
+    public void jsAmbiguous() {
+        // Either a division or a regular expression
+        assertNull(ReportMinification.minifyJs("{}\n/a/.test(y);"));
+        assertNull(ReportMinification.minifyJs("x = a++ /b/ c;"));
+        // HTML-like comments end at the end of their line
+        assertNull(ReportMinification.minifyJs("x\n--> a /* b\nc */"));
+    }
+
+    @Test
+    public void css() {
+        assertEquals("a>b{color: red;}", ReportMinification.minifyCss("a  >  b {\n  color: red; /* c */\n}\n"));
+        assertEquals("/*! license */ a{}", ReportMinification.minifyCss("/*! license */\na { }"));
+        assertEquals("a{background: url(x/*y*/z.png)}", ReportMinification.minifyCss("a { background: url(x/*y*/z.png) }"));
+        assertEquals("a:after{content: \"  /* x */ \"}", ReportMinification.minifyCss("a:after {\n  content: \"  /* x */ \"\n}"));
+    }
+
+    @Test
+    public void html() {
+        // Text is kept, as it might be preformatted by a style
+        assertEquals("<p>a    b</p>", ReportMinification.minifyHtml("<p>a  <!-- c -->  b</p>"));
+        assertEquals("<pre>  a\n   b</pre>", ReportMinification.minifyHtml("<pre>  a\n   b</pre>"));
+        assertEquals("<div class=\"a  b\" id=x>", ReportMinification.minifyHtml("<div\n   class=\"a  b\"\n   id=x>"));
+        assertEquals("<!--[if IE]><p>IE</p><![endif]-->", ReportMinification.minifyHtml("<!--[if IE]><p>IE</p><![endif]-->"));
+    }
+
+    @Test
+    public void htmlRawText() {
+        assertEquals("<script>var s = '<!-- x -->';\n  f();</script>",
+                ReportMinification.minifyHtml("<script>var s = '<!-- x -->';\n  f();</script>"));
+        assertEquals("<textarea><!-- x --></textarea>", ReportMinification.minifyHtml("<textarea><!-- x --></textarea>"));
+        assertEquals("<a title=\"<!-- x -->\">y</a>", ReportMinification.minifyHtml("<a title=\"<!-- x -->\">y</a>"));
+        assertEquals("<svg><![CDATA[ <!-- x --> ]]></svg>", ReportMinification.minifyHtml("<svg><![CDATA[ <!-- x --> ]]></svg>"));
+    }
+
+    @Test
+    public void json() {
+        assertEquals("{\"a\":[1,2],\"b\":\" c \"}", ReportMinification.minifyJson("{\n  \"a\": [1, 2],\n  \"b\": \" c \"\n}\n"));
+        assertNull(ReportMinification.minifyJson("not json"));
+    }
+
+    @Test
+    public void minifiedFilesAreSkipped() throws Exception {
+        assertNull(ReportMinification.minify("app.min.js", "var a = 1; // one".getBytes("UTF-8")));
+        assertNull(ReportMinification.minify("app.txt", "a  b".getBytes("UTF-8")));
+    }
+
+    private static void assertUnchanged(String js) {
+        assertEquals(js, ReportMinification.minifyJs(js));
+    }
+}
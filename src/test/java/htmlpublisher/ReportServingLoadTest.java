@@ -0,0 +1,227 @@
+package htmlpublisher;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueTaskFuture;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+/**
+ * Load test of the serving of reports by {@link HtmlPublisherTarget.HTMLAction} and {@link HtmlPublisherTarget.HTMLBuildAction}.
+ * It is skipped unless {@code -Dhtmlpublisher.loadTest=true} is set. It is tuned with the following properties:
+ * <ul>
+ * <li>{@code htmlpublisher.loadTest.files}: number of files of the report, 2000 by default</li>
+ * <li>{@code htmlpublisher.loadTest.fileSize}: size of each file in bytes, 8192 by default</li>
+ * <li>{@code htmlpublisher.loadTest.concurrency}: number of concurrent clients, 16 by default</li>
+ * <li>{@code htmlpublisher.loadTest.requests}: number of requests of each run, 20000 by default</li>
+ * </ul>
+ * Latencies, throughput and allocations are printed to the standard output.
+ */
+public class ReportServingLoadTest {
+
+    private static final String PREFIX = "htmlpublisher.loadTest";
+    private static final int FILES = Integer.getInteger(PREFIX + ".files", 2000);
+    private static final int FILE_SIZE = Integer.getInteger(PREFIX + ".fileSize", 8192);
+    private static final int CONCURRENCY = Integer.getInteger(PREFIX + ".concurrency", 16);
+    private static final int REQUESTS = Integer.getInteger(PREFIX + ".requests", 20000);
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule() {
+        {
+            // The duration depends on the configured load
+            timeout = 0;
+        }
+    };
+
+    @Before
+    public void enabled() {
+        Assume.assumeTrue("Set -D" + PREFIX + "=true to run the load test", Boolean.getBoolean(PREFIX));
+    }
+
+    @Test
+    public void serveReportsConcurrently() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("load");
+        p.getBuildersList().add(new ReportGenerator());
+        p.getPublishersList().add(new HtmlPublisher(Arrays.asList(
+                new HtmlPublisherTarget("buildReport", "report", "index.html", true, false, false),
+                new HtmlPublisherTarget("projectReport", "report", "index.html", false, false, false))));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+
+        List<URL> buildUrls = new ArrayList<URL>();
+        List<URL> projectUrls = new ArrayList<URL>();
+        for (int i = 0; i < FILES; i++) {
+            buildUrls.add(new URL(r.getURL(), b.getUrl() + "buildReport/page" + i + ".html"));
+            projectUrls.add(new URL(r.getURL(), p.getUrl() + "projectReport/page" + i + ".html"));
+        }
+
+        // Warm up the caches and the JIT
+        load(buildUrls, Math.max(1, REQUESTS / 10));
+        load(projectUrls, Math.max(1, REQUESTS / 10));
+
+        Stats build = load(buildUrls, REQUESTS);
+        System.out.println("Build-level report: " + build);
+        assertEquals("Requests of the build-level report failed", 0, build.failures);
+
+        Stats project = load(projectUrls, REQUESTS);
+        System.out.println("Project-level report: " + project);
+        assertEquals("Requests of the project-level report failed", 0, project.failures);
+
+        // The project-level report is replaced at once, it is never missing nor partial
+        QueueTaskFuture<FreeStyleBuild> publication = p.scheduleBuild2(0);
+        Stats republished = load(projectUrls, REQUESTS);
+        r.assertBuildStatusSuccess(publication);
+        System.out.println("Project-level report while it is published again: " + republished);
+        assertEquals("Requests of the project-level report failed while it was published again", 0, republished.failures);
+    }
+
+    /**
+     * Sends the requests from concurrent clients, the URLs are requested in turn.
+     */
+    private static Stats load(final List<URL> urls, final int requests) throws Exception {
+        final long[] latencies = new long[requests];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final long[] clientAllocations = new long[CONCURRENCY];
+        long allocatedBefore = getAllocatedBytes();
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        long start = System.nanoTime();
+        for (int t = 0; t < CONCURRENCY; t++) {
+            final int client = t;
+            executor.submit(new Runnable() {
+                public void run() {
+                    long allocated = getCurrentThreadAllocatedBytes();
+                    byte[] buf = new byte[8192];
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        long requestStart = System.nanoTime();
+                        try {
+                            HttpURLConnection c = (HttpURLConnection) urls.get(i % urls.size()).openConnection();
+                            if (c.getResponseCode() != 200) {
+                                failures.incrementAndGet();
+                            }
+                            InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+                            if (in != null) {
+                                try {
+                                    while (in.read(buf) >= 0) {
+                                        // Discard the content
+                                    }
+                                } finally {
+                                    in.close();
+                                }
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - requestStart;
+                    }
+                    clientAllocations[client] = getCurrentThreadAllocatedBytes() - allocated;
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue("Load test timed out", executor.awaitTermination(30, TimeUnit.MINUTES));
+        long elapsed = System.nanoTime() - start;
+
+        long allocated = getAllocatedBytes() - allocatedBefore;
+        for (long clientAllocation : clientAllocations) {
+            allocated -= clientAllocation;
+        }
+        Arrays.sort(latencies);
+        return new Stats(requests, failures.get(), elapsed, latencies[requests / 2], latencies[Math.min(requests - 1, requests * 99 / 100)],
+                allocated);
+    }
+
+    /**
+     * Gets the bytes allocated by the live threads of the JVM.
+     * @return 0 if the JVM does not measure allocations
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    private static long getCurrentThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static final class Stats {
+        private final int requests;
+        private final int failures;
+        private final long elapsedNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long allocatedBytes;
+
+        Stats(int requests, int failures, long elapsedNanos, long p50Nanos, long p99Nanos, long allocatedBytes) {
+            this.requests = requests;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests from %d clients, %d failed, %.0f requests/s, p50 %.2f ms, p99 %.2f ms, "
+                    + "%d KB allocated by the server (%d bytes/request)",
+                    requests, CONCURRENCY, failures, requests * 1e9 / elapsedNanos, p50Nanos / 1e6, p99Nanos / 1e6,
+                    allocatedBytes / 1024, allocatedBytes / requests);
+        }
+    }
+
+    /**
+     * Writes a synthetic report of {@link #FILES} pages in the workspace.
+     */
+    private static final class ReportGenerator extends TestBuilder {
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException, IOException {
+            FilePath dir = build.getWorkspace().child("report");
+            StringBuilder content = new StringBuilder("<html><body>");
+            while (content.length() < FILE_SIZE - 20) {
+                content.append("<p>Jenkins Rocks!</p>");
+            }
+            content.append("</body></html>");
+            dir.child("index.html").write(content.toString(), "UTF-8");
+            for (int i = 0; i < FILES; i++) {
+                dir.child("page" + i + ".html").write(content.toString(), "UTF-8");
+            }
+            return true;
+        }
+    }
+}
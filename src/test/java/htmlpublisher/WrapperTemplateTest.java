@@ -0,0 +1,87 @@
+package htmlpublisher;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WrapperTemplateTest {
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void defaultTemplate() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("tabs", "<li id=\"tab1\">index</li>\n<li id=\"tab2\">other</li>\n");
+        values.put("scripts", "<script type=\"text/javascript\">f();</script>");
+        String page = render(WrapperTemplate.getDefault(), values);
+        assertThat(page, Matchers.containsString("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\" />"));
+
+        // Same lines as the header, the tabs, the scripts and the footer written one by one
+        List<String> expected = new ArrayList<String>();
+        expected.addAll(HtmlPublisher.readFile("/htmlpublisher/HtmlPublisher/header.html", HtmlPublisher.class));
+        expected.add("<li id=\"tab1\">index</li>");
+        expected.add("<li id=\"tab2\">other</li>");
+        expected.add("<script type=\"text/javascript\">f();</script>");
+        expected.addAll(HtmlPublisher.readFile("/htmlpublisher/HtmlPublisher/footer.html", HtmlPublisher.class));
+        assertEquals(withoutBlankLines(expected), withoutBlankLines(IOUtils.readLines(new StringReader(page))));
+    }
+
+    @Test
+    public void variables() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("reportName", "Coverage");
+        values.put("tabs", "T");
+        assertEquals("<h1>Coverage</h1>T!", render(WrapperTemplate.compile("<h1>${reportName}</h1>${tabs}${jobName}!"), values));
+    }
+
+    @Test
+    public void unknownVariables() throws Exception {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("tabs", "T");
+        values.put("unknown", "U");
+        assertEquals("${unknown} $tabs ${ tabs } T", render(WrapperTemplate.compile("${unknown} $tabs ${ tabs } ${tabs}"), values));
+        assertEquals("T ${tabs", render(WrapperTemplate.compile("${tabs} ${tabs"), values));
+        assertEquals("${${tabs", render(WrapperTemplate.compile("${${tabs"), values));
+        assertEquals("${T}", render(WrapperTemplate.compile("${${tabs}}"), values));
+    }
+
+    @Test
+    public void compiledTemplatesAreCached() {
+        assertSame(WrapperTemplate.compile("<p>${tabs}</p>"), WrapperTemplate.compile("<p>${tabs}</p>"));
+    }
+
+    @Test
+    public void blankTemplates() throws Exception {
+        assertNull(WrapperTemplate.normalize(null));
+        assertNull(WrapperTemplate.normalize(""));
+        assertNull(WrapperTemplate.normalize(" \n\t "));
+        assertEquals(" ${tabs} ", WrapperTemplate.normalize(" ${tabs} "));
+
+        HtmlPublisherTarget target = new HtmlPublisherTarget("Report", "archive", "index.html", false, false, false);
+        target.setWrapperTemplate("  \n");
+        assertNull(target.getWrapperTemplate());
+        assertSame("Blank templates mean the bundled template", WrapperTemplate.getDefault(), WrapperTemplate.forTarget(target));
+
+        target.setWrapperTemplate("<p>${tabs}</p>");
+        assertSame(WrapperTemplate.compile("<p>${tabs}</p>"), WrapperTemplate.forTarget(target));
+    }
+
+    private static String render(WrapperTemplate template, Map<String, String> values) throws Exception {
+        StringWriter w = new StringWriter();
+        template.render(values, w);
+        return w.toString();
+    }
+
+    private static List<String> withoutBlankLines(List<String> lines) {
+        List<String> result = new ArrayList<String>(lines);
+        result.removeAll(Collections.singleton(""));
+        return result;
+    }
+}
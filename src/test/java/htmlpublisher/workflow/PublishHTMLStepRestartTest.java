@@ -0,0 +1,144 @@
+package htmlpublisher.workflow;
+
+import htmlpublisher.ReportDeltaStore;
+import hudson.model.Action;
+import hudson.model.Result;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the publication of reports in the background, while the build is stopped or Jenkins is restarted.
+ * Publications are held by the lock of the reports of the job, which a removal of a base report would hold.
+ */
+public class PublishHTMLStepRestartTest {
+
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    /**
+     * Holds the removal lock of the reports of the job, until the publication should proceed.
+     */
+    private static CountDownLatch blocking;
+
+    @Test
+    public void stopWhilePublishing() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob job = createProject(story.j);
+                ReentrantReadWriteLock lock = block(job);
+                try {
+                    WorkflowRun run = job.scheduleBuild2(0, new Action[0]).waitForStart();
+                    waitUntilPublishing(run, lock);
+
+                    // The step is stopped, while it waits for the lock
+                    run.getExecution().interrupt(Result.ABORTED);
+                    while (run.isBuilding()) {
+                        Thread.sleep(100);
+                    }
+                    story.j.assertBuildStatus(Result.ABORTED, run);
+                    assertFalse("The publication should have been interrupted", lock.hasQueuedThreads());
+                    assertFalse("The report should not be published", new File(run.getRootDir(), "htmlreports/testReport").exists());
+                    assertNull(run.getAction(PublishHTMLStepExecution.CompletedPublications.class));
+                } finally {
+                    blocking.countDown();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void publishAgainOnResume() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob job = createProject(story.j);
+                ReentrantReadWriteLock lock = block(job);
+                WorkflowRun run = job.scheduleBuild2(0, new Action[0]).waitForStart();
+                waitUntilPublishing(run, lock);
+                // Jenkins is restarted while the report is being published
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob job = story.j.jenkins.getItemByFullName("p", WorkflowJob.class);
+                WorkflowRun run = job.getLastBuild();
+                blocking.countDown();
+                while (run.isBuilding()) {
+                    Thread.sleep(100);
+                }
+                story.j.assertBuildStatusSuccess(run);
+                story.j.assertLogContains("publishing it again", run);
+                assertTrue("The report should be published", new File(run.getRootDir(), "htmlreports/testReport/index.html").isFile());
+                assertNotNull("The completion of the publication should be recorded",
+                        run.getAction(PublishHTMLStepExecution.CompletedPublications.class));
+            }
+        });
+    }
+
+    private static WorkflowJob createProject(JenkinsRule j) throws Exception {
+        WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, "p");
+        FileUtils.writeStringToFile(new File(j.jenkins.getWorkspaceFor(job).getRemote(), "report/index.html"),
+                "<html><body><p>Jenkins Rocks!</p></body></html>", "UTF-8");
+        job.setDefinition(new CpsFlowDefinition(""
+                + "node {\n"
+                + "  publishHTML(target: [keepAll: true, storage: 'DELTA', reportDir: 'report', "
+                + "reportFiles: 'index.html', reportName: 'testReport']) \n"
+                + "}", true));
+        return job;
+    }
+
+    /**
+     * Holds the write lock of the reports of the job on another thread, until {@link #blocking} is released.
+     */
+    @SuppressWarnings("unchecked")
+    private static ReentrantReadWriteLock block(WorkflowJob job) throws Exception {
+        Field field = ReportDeltaStore.class.getDeclaredField("LOCKS");
+        field.setAccessible(true);
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        ((ConcurrentMap<File, ReadWriteLock>) field.get(null)).put(job.getRootDir(), lock);
+        blocking = new CountDownLatch(1);
+        final CountDownLatch locked = new CountDownLatch(1);
+        new Thread("blocking " + job.getFullName()) {
+            @Override
+            public void run() {
+                lock.writeLock().lock();
+                try {
+                    locked.countDown();
+                    blocking.await();
+                } catch (InterruptedException e) {
+                    // Released
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }.start();
+        locked.await();
+        return lock;
+    }
+
+    private static void waitUntilPublishing(WorkflowRun run, ReentrantReadWriteLock lock) throws Exception {
+        while (!JenkinsRule.getLog(run).contains("[htmlpublisher] Archiving at BUILD level")) {
+            Thread.sleep(100);
+        }
+        while (!lock.hasQueuedThreads()) {
+            Thread.sleep(100);
+        }
+        assertTrue(run.isBuilding());
+    }
+}
@@ -25,26 +25,41 @@
 package htmlpublisher.workflow;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
+import htmlpublisher.HtmlPublisher;
 import htmlpublisher.HtmlPublisherTarget;
+import htmlpublisher.ReportLimitAction;
+import htmlpublisher.ReportPublishStats;
+import htmlpublisher.ReportStorage;
+import htmlpublisher.TransferCompression;
+import hudson.Functions;
 import hudson.model.Action;
 import hudson.model.FreeStyleProject;
 import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.queue.QueueTaskFuture;
+import hudson.os.PosixAPI;
 import hudson.slaves.DumbSlave;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.RetentionStrategy;
+import hudson.util.FormValidation;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.hamcrest.Matchers;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepConfigTester.StepBuilder;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -84,6 +99,34 @@ public class PublishHTMLStepTest {
         configRoundTrip("Report", "archive", "index.html", true, false, false);
         configRoundTrip("Report", "archive", "index.html", false, true, false);
         configRoundTrip("Report", "archive", "index.html", false, false, true);
+
+        HtmlPublisherTarget deduplicated = new HtmlPublisherTarget("Report", "archive", "index.html", true, false, false);
+        deduplicated.setStorage(ReportStorage.DEDUPLICATED);
+        configRoundTrip(deduplicated);
+
+        HtmlPublisherTarget delta = new HtmlPublisherTarget("Report", "archive", "index.html", true, false, false);
+        delta.setStorage(ReportStorage.DELTA);
+        delta.setFullCopyInterval(5);
+        configRoundTrip(delta);
+
+        HtmlPublisherTarget incremental = new HtmlPublisherTarget("Report", "archive", "index.html", false, false, false);
+        incremental.setIncrementalSync(true);
+        configRoundTrip(incremental);
+
+        HtmlPublisherTarget filtered = new HtmlPublisherTarget("Report", "archive", "index.html", true, false, false);
+        filtered.setIncludes("**/*.html, css/**");
+        filtered.setExcludes("**/*.map");
+        configRoundTrip(filtered);
+
+        HtmlPublisherTarget limited = new HtmlPublisherTarget("Report", "archive", "index.html", true, false, false);
+        limited.setMaxSizeMB(100);
+        limited.setMaxFiles(1000);
+        configRoundTrip(limited);
+
+        HtmlPublisherTarget minified = new HtmlPublisherTarget("Report", "archive", "index.html", true, false, false);
+        minified.setMinify(true);
+        minified.setKeepOriginals(true);
+        configRoundTrip(minified);
     }
     
     @Test 
@@ -126,7 +169,552 @@ public class PublishHTMLStepTest {
         assertNotNull("Report should be present at the run level", buildReport);
         assertEquals(target.getReportName(), buildReport.getHTMLTarget().getReportName());
     }
+
+    @Test
+    public void manifestListsCopiedFilesAndWrapper() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        assertTrue(new File(testReportDir, "sub").mkdir());
+        writeTestHTML("sub/other.html");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        setupAndRunProject(target);
+
+        // Ensure that the manifest lists the sizes of the copied files, and the wrapper
+        r.assertBuildStatus(Result.SUCCESS, run);
+        File reportDir = new File(run.getRootDir(), "htmlreports/testReport");
+        List<String> lines = FileUtils.readLines(new File(run.getRootDir(), "htmlreports/testReport.manifest"), "UTF-8");
+        for (String path : new String[] {"index.html", "sub/other.html", target.getWrapperName()}) {
+            String line = null;
+            for (String l : lines) {
+                if (l.endsWith("\t" + path)) {
+                    line = l;
+                }
+            }
+            assertNotNull("Manifest should list " + path, line);
+            String[] fields = line.split("\t");
+            assertEquals(64, fields[0].length());
+            assertEquals(new File(reportDir, path).length(), Long.parseLong(fields[1]));
+        }
+    }
+
+    @Test
+    public void transferCompressions() throws Exception {
+
+        // Prepare the environment, with nested directories and an empty report
+        writeTestHTML("index.html");
+        assertTrue(new File(testReportDir, "a/b").mkdirs());
+        writeTestHTML("a/other.html");
+        writeTestHTML("a/b/deep.html");
+        File emptyReportDir = new File(testReportDir.getParentFile(), "emptyReportDir");
+        assertTrue(emptyReportDir.mkdirs());
+        setupProject(""
+                + "  publishHTML(target: [keepAll: true, reportDir: '" + TEST_REPORT_DIR + "', "
+                + "reportFiles: 'index.html', reportName: 'testReport']) \n"
+                + "  publishHTML(target: [keepAll: true, allowMissing: true, reportDir: 'emptyReportDir', "
+                + "reportFiles: 'index.html', reportName: 'emptyReport']) \n");
+
+        HtmlPublisher.DescriptorImpl descriptor = r.jenkins.getDescriptorByType(HtmlPublisher.DescriptorImpl.class);
+        for (TransferCompression compression : new TransferCompression[] {TransferCompression.NONE, TransferCompression.GZIP}) {
+            descriptor.setTransferCompression(compression);
+            run = r.assertBuildStatusSuccess(job.scheduleBuild2(0, new Action[0]));
+            r.assertLogContains(compression == TransferCompression.GZIP ? "(gzip level 6," : "(uncompressed,", run);
+
+            // Ensure that the archived tree matches the report
+            File reportDir = new File(run.getRootDir(), "htmlreports/testReport");
+            for (String path : new String[] {"index.html", "a/other.html", "a/b/deep.html"}) {
+                assertTrue(path + " should be transferred with " + compression,
+                        FileUtils.contentEquals(new File(testReportDir, path), new File(reportDir, path)));
+            }
+            File emptyReport = new File(run.getRootDir(), "htmlreports/emptyReport");
+            String[] files = emptyReport.list();
+            assertTrue("The empty report should only contain the wrapper",
+                    files == null || files.length == 0 || (files.length == 1 && files[0].equals("htmlpublisher-wrapper.html")));
+        }
+    }
+
+    @Test
+    public void wrapperTemplates() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        r.jenkins.getDescriptorByType(HtmlPublisher.DescriptorImpl.class).setWrapperTemplate("GLOBAL ${reportName}");
+        setupProject(""
+                + "  publishHTML(target: [keepAll: true, reportDir: '" + TEST_REPORT_DIR + "', reportFiles: 'index.html', "
+                + "reportName: 'testReport', wrapperTemplate: 'TARGET ${reportName}']) \n"
+                + "  publishHTML(target: [keepAll: true, reportDir: '" + TEST_REPORT_DIR + "', reportFiles: 'index.html', "
+                + "reportName: 'otherReport']) \n");
+        run = r.assertBuildStatusSuccess(job.scheduleBuild2(0, new Action[0]));
+
+        // Ensure that the template of the target takes precedence over the global one
+        assertEquals("TARGET testReport", FileUtils.readFileToString(
+                new File(run.getRootDir(), "htmlreports/testReport/htmlpublisher-wrapper.html"), "UTF-8"));
+        assertEquals("GLOBAL otherReport", FileUtils.readFileToString(
+                new File(run.getRootDir(), "htmlreports/otherReport/htmlpublisher-wrapper.html"), "UTF-8"));
+    }
+
+    @Test
+    public void globalConfigRoundTrip() throws Exception {
+        HtmlPublisher.DescriptorImpl descriptor = r.jenkins.getDescriptorByType(HtmlPublisher.DescriptorImpl.class);
+        descriptor.setTransferCompression(TransferCompression.GZIP);
+        descriptor.setCompressionLevel(3);
+        descriptor.setPublishParallelism(2);
+        r.configRoundtrip();
+        assertEquals(TransferCompression.GZIP, descriptor.getTransferCompression());
+        assertEquals(3, descriptor.getCompressionLevel());
+        assertEquals(2, descriptor.getPublishParallelism());
+
+        descriptor.setTransferCompression(TransferCompression.NONE);
+        r.configRoundtrip();
+        assertEquals(TransferCompression.NONE, descriptor.getTransferCompression());
+
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckCompressionLevel("0").kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckCompressionLevel(" 9 ").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel("10").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel("-1").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel("fast").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckCompressionLevel(null).kind);
+    }
+
+    @Test
+    public void publishStatsAreExported() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        setupAndRunProject(target);
+        r.assertBuildStatus(Result.SUCCESS, run);
+
+        // Ensure that the statistics are attached to the build
+        ReportPublishStats stats = run.getAction(ReportPublishStats.class);
+        assertNotNull("Statistics should be attached to the build", stats);
+        assertEquals(1, stats.getTargets().size());
+        ReportPublishStats.TargetStats targetStats = stats.getTargets().get(0);
+        assertEquals("testReport", targetStats.getName());
+        assertEquals("slave", targetStats.getNode());
+        assertEquals("The report and its wrapper page should be counted", 2, targetStats.getFiles());
+
+        // And exported by the remote API
+        String json = r.createWebClient().goTo(run.getUrl() + "api/json?tree=actions[targets[name,node,files,phases[name]]]",
+                "application/json").getWebResponse().getContentAsString();
+        assertThat(json, Matchers.containsString("\"name\":\"testReport\""));
+        assertThat(json, Matchers.containsString("\"node\":\"slave\""));
+        assertThat(json, Matchers.containsString("\"files\":2"));
+        assertThat(json, Matchers.containsString("\"name\":\"transfer\""));
+    }
     
+    @Test
+    public void projectActionsFollowLastSuccessfulBuild() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        setupAndRunProject(target);
+        r.assertBuildStatus(Result.SUCCESS, run);
+        assertNotNull("Report should be present at the project level", job.getAction(HtmlPublisherTarget.HTMLAction.class));
+
+        // The reports of the build are read once, as long as it is the last successful build
+        for (HtmlPublisherTarget.HTMLBuildAction action : run.getActions(HtmlPublisherTarget.HTMLBuildAction.class)) {
+            run.getActions().remove(action);
+        }
+        assertNotNull("Reports of the job should be cached", job.getAction(HtmlPublisherTarget.HTMLAction.class));
+
+        // They are read again from the next build
+        job.setDefinition(new CpsFlowDefinition("node('slave') {\n"
+                + "  publishHTML(target: [keepAll: true, reportDir: '" + TEST_REPORT_DIR
+                + "', reportFiles: 'index.html', reportName: 'otherReport']) \n"
+                + "}", true));
+        run = job.scheduleBuild2(0, new Action[0]).get();
+        r.assertBuildStatus(Result.SUCCESS, run);
+        List<HtmlPublisherTarget.HTMLAction> jobReports = job.getActions(HtmlPublisherTarget.HTMLAction.class);
+        assertEquals(1, jobReports.size());
+        assertEquals("otherReport", jobReports.get(0).getHTMLTarget().getReportName());
+    }
+
+    @Test
+    public void publishProjectReportAtomically() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", false, false, false);
+        setupAndRunProject(target);
+
+        // Ensure that the report has been published as a version and is served from it
+        r.assertBuildStatus(Result.SUCCESS, run);
+        File pointer = new File(job.getRootDir(), "htmlreports/testReport.current");
+        assertTrue("Current version should be recorded", pointer.isFile());
+        String version = FileUtils.readFileToString(pointer, "UTF-8").trim();
+        assertTrue("Current version should contain the report",
+                new File(job.getRootDir(), "htmlreports/testReport.versions/" + version + "/index.html").isFile());
+        String page = r.createWebClient().goTo(job.getUrl() + "testReport/index.html").getWebResponse().getContentAsString();
+        assertThat(page, Matchers.containsString("Jenkins Rocks!"));
+    }
+
+    @Test
+    public void publishIncrementalProjectReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        writeTestHTML("other.html");
+        writeTestHTML("stale.html");
+
+        // Run the project twice, the second report changes a file and removes another one
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", false, false, false);
+        target.setIncrementalSync(true);
+        setupAndRunProject(target);
+        r.assertBuildStatus(Result.SUCCESS, run);
+        File previousDir = getCurrentVersionDir();
+        FileUtils.writeStringToFile(new File(testReportDir, "other.html"), "<html><body><p>Changed</p></body></html>", "UTF-8");
+        assertTrue(new File(testReportDir, "stale.html").delete());
+        run = job.scheduleBuild2(0, new Action[0]).get();
+        r.assertBuildStatus(Result.SUCCESS, run);
+
+        // Ensure that only the changed file has been transferred, and the stale one is gone
+        r.assertLogContains("Transferred 1 changed files", run);
+        r.assertLogContains("removed 1 stale files, kept 1 unchanged files", run);
+        File currentDir = getCurrentVersionDir();
+        assertFalse("A new version should be published", previousDir.equals(currentDir));
+        assertFalse("Stale files should not be published", new File(currentDir, "stale.html").exists());
+        assertEquals(FileUtils.readFileToString(new File(previousDir, "index.html"), "UTF-8"),
+                FileUtils.readFileToString(new File(currentDir, "index.html"), "UTF-8"));
+        if (!Functions.isWindows()) {
+            assertEquals("Unchanged files should be linked from the previous version", 2,
+                    PosixAPI.jnr().stat(new File(currentDir, "index.html").getPath()).nlink());
+        }
+        String page = r.createWebClient().goTo(job.getUrl() + "testReport/other.html").getWebResponse().getContentAsString();
+        assertThat(page, Matchers.containsString("Changed"));
+    }
+
+    @Test
+    public void serveReportWithValidators() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+
+        // Run the project, the report is served while the build is still running
+        setupProject("  publishHTML(target: [keepAll: true, reportDir: '" + TEST_REPORT_DIR
+                + "', reportFiles: 'index.html', reportName: 'testReport']) \n"
+                + "  semaphore 'wait' \n");
+        run = job.scheduleBuild2(0, new Action[0]).waitForStart();
+        while (!JenkinsRule.getLog(run).contains("[htmlpublisher] Published")) {
+            Thread.sleep(100);
+        }
+        String path = run.getUrl() + "testReport/index.html";
+        HttpURLConnection connection = request(path);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("Reports of running builds should be revalidated", "private, no-cache", connection.getHeaderField("Cache-Control"));
+        assertEquals("Files should get the default Content Security Policy of Jenkins",
+                "sandbox; default-src 'none'; img-src 'self'; style-src 'self';", connection.getHeaderField("Content-Security-Policy"));
+        String etag = connection.getHeaderField("ETag");
+        assertNotNull("Files should have an entity tag", etag);
+        assertThat(IOUtils.toString(connection.getInputStream(), "UTF-8"), Matchers.containsString("Jenkins Rocks!"));
+
+        // Completed builds do not change anymore
+        SemaphoreStep.success("wait/1", null);
+        while (run.isBuilding()) {
+            Thread.sleep(100);
+        }
+        r.assertBuildStatusSuccess(run);
+        connection = request(path);
+        assertEquals(200, connection.getResponseCode());
+        assertThat(connection.getHeaderField("Cache-Control"), Matchers.startsWith("private, max-age="));
+        assertEquals("The entity tag should not change once the build is completed", etag, connection.getHeaderField("ETag"));
+
+        // Browsers revalidating the file do not get it again
+        connection = request(path, "If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+        connection = request(path, "If-None-Match", "\"other\"");
+        assertEquals(200, connection.getResponseCode());
+    }
+
+    @Test
+    public void serveReportRanges() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        long length = new File(testReportDir, "index.html").length();
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        setupAndRunProject(target);
+        r.assertBuildStatus(Result.SUCCESS, run);
+        String path = run.getUrl() + "testReport/index.html";
+        String etag = request(path).getHeaderField("ETag");
+
+        // Ranges are served when the file has not changed
+        HttpURLConnection connection = request(path, "Range", "bytes=0-5", "If-Range", etag);
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 0-5/" + length, connection.getHeaderField("Content-Range"));
+        assertEquals("<html>", IOUtils.toString(connection.getInputStream(), "UTF-8"));
+
+        // The whole file is sent when it has changed
+        connection = request(path, "Range", "bytes=0-5", "If-Range", "\"other\"");
+        assertEquals(200, connection.getResponseCode());
+        assertThat(IOUtils.toString(connection.getInputStream(), "UTF-8"), Matchers.containsString("Jenkins Rocks!"));
+
+        // Ranges beyond the end of the file cannot be satisfied
+        connection = request(path, "Range", "bytes=" + length + "-");
+        assertEquals(416, connection.getResponseCode());
+        assertEquals("bytes */" + length, connection.getHeaderField("Content-Range"));
+    }
+
+    @Test
+    public void servePrecompressedReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            data.append("Jenkins Rocks! ").append(i).append('\n');
+        }
+        FileUtils.writeStringToFile(new File(testReportDir, "data.txt"), data.toString(), "UTF-8");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setPrecompress(true);
+        setupAndRunProject(target);
+        r.assertBuildStatus(Result.SUCCESS, run);
+        r.assertLogContains("Precompressed 1 files", run);
+        String path = run.getUrl() + "testReport/data.txt";
+
+        // Browsers not accepting GZip get the file itself
+        HttpURLConnection connection = request(path);
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+        assertEquals(data.toString(), IOUtils.toString(connection.getInputStream(), "UTF-8"));
+        connection = request(path, "Accept-Encoding", "gzip;q=0, deflate");
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+        String etag = connection.getHeaderField("ETag");
+
+        // Other browsers get the precompressed variant, which has its own entity tag
+        connection = request(path, "Accept-Encoding", "deflate, gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+        assertFalse(etag.equals(connection.getHeaderField("ETag")));
+        assertThat(connection.getContentLength(), Matchers.lessThan(data.length()));
+        assertEquals(data.toString(), IOUtils.toString(new GZIPInputStream(connection.getInputStream()), "UTF-8"));
+
+        // Small files are not compressed, and do not vary
+        connection = request(run.getUrl() + "testReport/index.html", "Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertNull(connection.getHeaderField("Vary"));
+    }
+
+    @Test
+    public void publishDeduplicatedReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setStorage(ReportStorage.DEDUPLICATED);
+        setupAndRunProject(target);
+
+        // Ensure that the report is stored once and served from the store
+        r.assertBuildStatus(Result.SUCCESS, run);
+        HtmlPublisherTarget.HTMLBuildAction buildReport = run.getAction(HtmlPublisherTarget.HTMLBuildAction.class);
+        assertNotNull("Report should be present at the run level", buildReport);
+        assertTrue("Manifest should be saved next to the report",
+                new File(run.getRootDir(), "htmlreports/testReport.manifest").isFile());
+        assertFalse("Report files should not be copied to the build directory",
+                new File(run.getRootDir(), "htmlreports/testReport/index.html").exists());
+        String page = r.createWebClient().goTo(run.getUrl() + "testReport/index.html").getWebResponse().getContentAsString();
+        assertThat(page, Matchers.containsString("Jenkins Rocks!"));
+    }
+
+    @Test
+    public void publishArchivedReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setStorage(ReportStorage.ARCHIVE);
+        setupAndRunProject(target);
+
+        // Ensure that the report is stored as a single archive and served from it
+        r.assertBuildStatus(Result.SUCCESS, run);
+        assertTrue("Archive should be saved next to the report",
+                new File(run.getRootDir(), "htmlreports/testReport.zip").isFile());
+        assertFalse("Report files should not be copied to the build directory",
+                new File(run.getRootDir(), "htmlreports/testReport/index.html").exists());
+        String page = r.createWebClient().goTo(run.getUrl() + "testReport/index.html").getWebResponse().getContentAsString();
+        assertThat(page, Matchers.containsString("Jenkins Rocks!"));
+    }
+
+    @Test
+    public void publishDeltaReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        writeTestHTML("other.html");
+
+        // Run the project twice, the second report changes a single file
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setStorage(ReportStorage.DELTA);
+        setupAndRunProject(target);
+        r.assertBuildStatus(Result.SUCCESS, run);
+        WorkflowRun base = run;
+        FileUtils.writeStringToFile(new File(testReportDir, "other.html"), "<html><body><p>Changed</p></body></html>", "UTF-8");
+        run = job.scheduleBuild2(0, new Action[0]).get();
+        r.assertBuildStatus(Result.SUCCESS, run);
+
+        // Ensure that the second build only stores the changed file, and serves the others from the first one
+        assertTrue("Full copy should be stored by the first build",
+                new File(base.getRootDir(), "htmlreports/testReport/index.html").isFile());
+        assertFalse("Unchanged files should not be stored again",
+                new File(run.getRootDir(), "htmlreports/testReport/index.html").exists());
+        assertTrue("Changed files should be stored",
+                new File(run.getRootDir(), "htmlreports/testReport/other.html").isFile());
+        JenkinsRule.WebClient wc = r.createWebClient();
+        assertThat(wc.goTo(run.getUrl() + "testReport/index.html").getWebResponse().getContentAsString(),
+                Matchers.containsString("Jenkins Rocks!"));
+        assertThat(wc.goTo(run.getUrl() + "testReport/other.html").getWebResponse().getContentAsString(),
+                Matchers.containsString("Changed"));
+
+        // Deleting the first build moves its files to the second one
+        base.delete();
+        assertTrue("Files of the deleted full copy should be moved to the next build",
+                new File(run.getRootDir(), "htmlreports/testReport/index.html").isFile());
+        assertThat(wc.goTo(run.getUrl() + "testReport/index.html").getWebResponse().getContentAsString(),
+                Matchers.containsString("Jenkins Rocks!"));
+    }
+
+    @Test
+    public void publishFilteredReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        writeTestHTML("data.map");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setExcludes("**/*.map");
+        setupAndRunProject(target);
+
+        // Ensure that excluded files have not been archived
+        r.assertBuildStatus(Result.SUCCESS, run);
+        assertTrue("Included files should be archived",
+                new File(run.getRootDir(), "htmlreports/testReport/index.html").isFile());
+        assertFalse("Excluded files should not be archived",
+                new File(run.getRootDir(), "htmlreports/testReport/data.map").exists());
+    }
+
+    @Test
+    public void publishMinifiedReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        FileUtils.writeStringToFile(new File(testReportDir, "app.js"),
+                "function f() {\n    return 1;\n}\n\n//# sourceMappingURL=app.js.map\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(testReportDir, "app.js.map"), "{}", "UTF-8");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setMinify(true);
+        target.setKeepOriginals(true);
+        setupAndRunProject(target);
+
+        // Ensure that the minified files are published, along with the originals
+        r.assertBuildStatus(Result.SUCCESS, run);
+        r.assertLogContains("bytes saved", run);
+        File reportDir = new File(run.getRootDir(), "htmlreports/testReport");
+        assertEquals("function f() {\nreturn 1;\n}", FileUtils.readFileToString(new File(reportDir, "app.js"), "UTF-8"));
+        assertFalse("Source maps should be left out", new File(reportDir, "app.js.map").exists());
+        assertTrue("Originals should be kept", new File(reportDir, "htmlpublisher-originals/app.js.map").isFile());
+        String page = r.createWebClient().goTo(run.getUrl() + "testReport/index.html").getWebResponse().getContentAsString();
+        assertThat(page, Matchers.containsString("Jenkins Rocks!"));
+    }
+
+    @Test
+    public void publishMinifiedReportWithinLimits() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        FileUtils.writeStringToFile(new File(testReportDir, "app.js"), "function f() {\n    return 1;\n}\n", "UTF-8");
+
+        // Run the project, the original files are kept next to the minified ones
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setMinify(true);
+        target.setKeepOriginals(true);
+        target.setMaxFiles(3);
+        setupAndRunProject(target);
+
+        // Ensure that the limits apply to the published report
+        r.assertBuildStatus(Result.FAILURE, run);
+        r.assertLogContains("4 files exceed the limit of 3 files", run);
+    }
+
+    @Test
+    public void publishOversizedReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        writeTestHTML("other.html");
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setMaxFiles(1);
+        setupAndRunProject(target);
+
+        // Ensure that nothing has been archived
+        r.assertBuildStatus(Result.FAILURE, run);
+        r.assertLogContains("2 files exceed the limit of 1 files", run);
+        assertFalse("Files of an oversized report should not be archived",
+                new File(run.getRootDir(), "htmlreports/testReport").exists());
+    }
+
+    @Test
+    public void publishTruncatedReport() throws Exception {
+
+        // Prepare the environment
+        writeTestHTML("index.html");
+        writeTestHTML("other.html");
+        r.jenkins.getDescriptorByType(HtmlPublisher.DescriptorImpl.class).setLimitAction(ReportLimitAction.TRUNCATE);
+
+        // Run the project
+        final HtmlPublisherTarget target = new HtmlPublisherTarget
+            ("testReport", TEST_REPORT_DIR, "index.html", true, false, false);
+        target.setMaxFiles(1);
+        setupAndRunProject(target);
+
+        // Ensure that only the first file has been archived
+        r.assertBuildStatus(Result.SUCCESS, run);
+        r.assertLogContains("only the first files within the limits are archived", run);
+        assertTrue("Files within the limits should be archived",
+                new File(run.getRootDir(), "htmlreports/testReport/index.html").isFile());
+        assertFalse("Files exceeding the limits should not be archived",
+                new File(run.getRootDir(), "htmlreports/testReport/other.html").exists());
+    }
+
     @Test 
     public void publishMissingReportFolder() throws Exception { 
         final String missingReportDir = "testReportDirNonExistent";
@@ -153,6 +741,11 @@ public class PublishHTMLStepTest {
         assertNull("Report should be missing", report);
     }
     
+    private File getCurrentVersionDir() throws IOException {
+        String version = FileUtils.readFileToString(new File(job.getRootDir(), "htmlreports/testReport.current"), "UTF-8").trim();
+        return new File(job.getRootDir(), "htmlreports/testReport.versions/" + version);
+    }
+
     private void writeTestHTML(String fileName) throws Exception {
         // Prepare the test file
         if (!testReportDir.exists() && !testReportDir.mkdirs()) {
@@ -168,6 +761,25 @@ public class PublishHTMLStepTest {
     }
     
     private void setupAndRunProject(@NonNull HtmlPublisherTarget target) throws Exception {
+        setupProject("  publishHTML(target: [allowMissing: " + target.getAllowMissing() + 
+                  ", minify: " + target.getMinify() + ", keepOriginals: " + target.getKeepOriginals() + 
+                  ", keepAll: " + target.getKeepAll() + ", incrementalSync: " + target.getIncrementalSync() + 
+                  ", precompress: " + target.getPrecompress() + 
+                  ", storage: '" + target.getStorage() + 
+                  "', reportDir: '" + target.getReportDir() + 
+                  (target.getIncludes() != null ? "', includes: '" + target.getIncludes() : "") +
+                  (target.getExcludes() != null ? "', excludes: '" + target.getExcludes() : "") +
+                  "', maxFiles: " + target.getMaxFiles() +
+                  ", reportFiles: '" + target.getReportFiles() + "', reportName: '" + target.getReportName() + "']) \n");
+        QueueTaskFuture<WorkflowRun> runFuture = job.scheduleBuild2(0, new Action[0]);
+        assertThat("build was actually scheduled", runFuture, Matchers.notNullValue());
+        run = runFuture.get();
+    }
+
+    /**
+     * Creates the project, which runs the given steps on the test node.
+     */
+    private void setupProject(String steps) throws Exception {
         
         // Test node for the workflow
         r.jenkins.addNode(new DumbSlave("slave", "dummy", testWorkspace.getPath(), "1",
@@ -177,13 +789,16 @@ public class PublishHTMLStepTest {
         job = r.jenkins.createProject(WorkflowJob.class, TEST_PROJECT_NAME);
         job.setDefinition(new CpsFlowDefinition(""
                 + "node('slave') {\n"
-                + "  publishHTML(target: [allowMissing: " + target.getAllowMissing() + 
-                  ", keepAll: " + target.getKeepAll() + ", reportDir: '" + target.getReportDir() + 
-                  "', reportFiles: '" + target.getReportFiles() + "', reportName: '" + target.getReportName() + "']) \n"
+                + steps
                 + "}", true));
-        QueueTaskFuture<WorkflowRun> runFuture = job.scheduleBuild2(0, new Action[0]);
-        assertThat("build was actually scheduled", runFuture, Matchers.notNullValue());
-        run = runFuture.get();
+    }
+
+    private HttpURLConnection request(String path, String... headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(r.getURL(), path).openConnection();
+        for (int i = 0; i < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        return connection;
     }
 
     private void configRoundTrip(String reportName, String reportDir, String reportFiles) throws Exception {